@@ -42,12 +42,12 @@ public class MainActivity extends AppCompatActivity implements DownloadStack.IDo
         }
 
         @Override
-        public void onDownloadTaskStart(String uid, String filepath, int filesize) throws RemoteException {
+        public void onDownloadTaskStart(String uid, String filepath, long filesize) throws RemoteException {
             MainActivity.this.onDownloadTaskStart(uid, filepath, filesize);
         }
 
         @Override
-        public void onDownloadTaskBaseInfo(String uid, String filepath, int filesize) throws RemoteException {
+        public void onDownloadTaskBaseInfo(String uid, String filepath, long filesize) throws RemoteException {
             MainActivity.this.onDownloadTaskBaseInfo(uid, filepath, filesize);
         }
 
@@ -62,8 +62,8 @@ public class MainActivity extends AppCompatActivity implements DownloadStack.IDo
         }
 
         @Override
-        public void onDownloadTaskFinish(String uid, String filePath) throws RemoteException {
-            MainActivity.this.onDownloadTaskFinish(uid, filePath);
+        public void onDownloadTaskFinish(String uid, String filePath, String digest) throws RemoteException {
+            MainActivity.this.onDownloadTaskFinish(uid, filePath, digest);
         }
 
         @Override
@@ -168,12 +168,12 @@ public class MainActivity extends AppCompatActivity implements DownloadStack.IDo
     }
 
     @Override
-    public void onDownloadTaskStart(String uid, String filepath, int filesize) {
+    public void onDownloadTaskStart(String uid, String filepath, long filesize) {
 
     }
 
     @Override
-    public void onDownloadTaskBaseInfo(String uid, String filepath, int filesize) {
+    public void onDownloadTaskBaseInfo(String uid, String filepath, long filesize) {
 
     }
 
@@ -188,7 +188,7 @@ public class MainActivity extends AppCompatActivity implements DownloadStack.IDo
     }
 
     @Override
-    public void onDownloadTaskFinish(String uid, final String filePath) {
+    public void onDownloadTaskFinish(String uid, final String filePath, String digest) {
         new Thread(new Runnable() {
             @Override
             public void run() {
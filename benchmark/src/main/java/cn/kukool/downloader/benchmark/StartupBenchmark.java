@@ -0,0 +1,153 @@
+package cn.kukool.downloader.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cn.kukool.downloader.download.DownloadRecord;
+import cn.kukool.downloader.download.ProgressCounter;
+import cn.kukool.downloader.download.Segment;
+import cn.kukool.downloader.download.SegmentScheduler;
+
+/**
+ * Compares the work done when the download stack starts with a long history.
+ * <p/>
+ * "eager" builds an engine for every history row and every unfinished task, reads the segments of
+ * the tasks and checks their directories like the old startup did. "lazy" keeps only the index row of
+ * every unfinished task, their engines are built when they run, and reads the first page of the history.
+ * <p/>
+ * Android SQLite doesn't run on the JVM, so the rows are in memory and the saved queries
+ * (one per task and the whole history table) are not part of the numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+    private static final int SEGMENTS_PER_TASK = 3;
+    private static final int CONNECTIONS = 8;
+    private static final long FILE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * finished downloads in the history
+     */
+    @Param({ "1000", "10000" })
+    public int rows;
+
+    /**
+     * unfinished downloads
+     */
+    @Param({ "20" })
+    public int tasks;
+
+    @Param({ "50" })
+    public int pageSize;
+
+    private File mDir;
+    private Object[][] mHistory;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("startup", "");
+        if (!mDir.delete() || !mDir.mkdirs()) {
+            throw new IOException("can't create " + mDir);
+        }
+
+        mHistory = new Object[rows][];
+        for (int i = 0; i < rows; i++) {
+            mHistory[i] = new Object[] {
+                    "uid" + i, "http://example.com/" + i, mDir.getPath(), "file" + i, FILE_SIZE, (long) i
+            };
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDir.delete();
+    }
+
+    @Benchmark
+    public int eager() {
+        int count = 0;
+        for (int i = 0; i < tasks; i++) {
+            count += loadTask(true);
+        }
+
+        for (Object[] row : mHistory) {
+            File dir = new File((String) row[2]);
+            if (dir.exists() && !dir.isFile()) {
+                count += newEngine().length;
+            }
+        }
+
+        return count;
+    }
+
+    @Benchmark
+    public int lazy() {
+        int count = 0;
+        for (int i = 0; i < tasks; i++) {
+            count += loadTask(false);
+        }
+
+        List<DownloadRecord> page = new ArrayList<>(pageSize);
+        for (int i = 0; i < pageSize && i < mHistory.length; i++) {
+            Object[] row = mHistory[mHistory.length - 1 - i];
+            page.add(new DownloadRecord((String) row[0], (String) row[1], (String) row[2], (String) row[3],
+                    (Long) row[4], (Long) row[5], null));
+        }
+
+        return count + page.size();
+    }
+
+    private int loadTask(boolean withEngine) {
+        Object[] row = newRow();
+        if (!withEngine) {
+            return row.length;
+        }
+
+        Object[] engine = newEngine();
+
+        File dir = mDir;
+        if (!dir.exists() || dir.isFile()) {
+            return 0;
+        }
+
+        SegmentScheduler scheduler = (SegmentScheduler) engine[1];
+        long block = FILE_SIZE / SEGMENTS_PER_TASK;
+        for (int i = 0; i < SEGMENTS_PER_TASK; i++) {
+            long end = i == SEGMENTS_PER_TASK - 1 ? FILE_SIZE - 1 : block * (i + 1) - 1;
+            scheduler.add(new Segment(i + 1, block * i + block / 2, end));
+        }
+
+        return scheduler.getSegments().size();
+    }
+
+    /**
+     * What a download loaded from the database keeps until it runs.
+     */
+    private Object[] newRow() {
+        return new Object[] { "uid", "http://example.com/file", mDir.getPath(), "file", FILE_SIZE, FILE_SIZE / 2 };
+    }
+
+    private static Object[] newEngine() {
+        return new Object[] { new ProgressCounter(CONNECTIONS), new SegmentScheduler(256 * 1024) };
+    }
+}
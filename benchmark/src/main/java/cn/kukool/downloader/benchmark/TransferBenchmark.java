@@ -0,0 +1,278 @@
+package cn.kukool.downloader.benchmark;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import cn.kukool.downloader.download.BufferPool;
+import cn.kukool.downloader.download.ProgressCounter;
+import cn.kukool.downloader.download.Segment;
+import cn.kukool.downloader.download.SegmentScheduler;
+import cn.kukool.downloader.download.SegmentWriter;
+import cn.kukool.downloader.download.StreamingHasher;
+import okio.Buffer;
+
+/**
+ * Downloads one body from a local server the way FileDownloader does: the file is cut into
+ * one segment per connection, every connection writes its segment with SegmentWriter,
+ * counts progress in a ProgressCounter and steals from the slowest segment when it's done.
+ * FileDownloader and DownloadThread themselves need Handler, Context and the database,
+ * so they can't run on the JVM, this drives the same engine classes without them.
+ * <p/>
+ * The reported time is time-to-complete of one download. MB/s and client side bytes
+ * allocated per MB are printed when each trial finishes. Save the results with
+ * -rf json -rff result.json and compare them between builds to catch regressions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String RANGE = "range";
+    private static final String PLAIN = "plain";
+    private static final String NONE = "none";
+    private static final String STREAM = "stream";
+    private static final String MAPPED = "mapped";
+
+    /* Config.MAP_WINDOW_SIZE and Config.CHECKPOINT_BYTES */
+    private static final int MAP_WINDOW_SIZE = 8 << 20;
+    private static final long FLUSH_BYTES = 4 << 20;
+
+    /**
+     * "range" answers Range requests with 206, "plain" always sends the whole body with 200
+     * and is downloaded with one connection whatever connections is
+     */
+    @Param({ RANGE, PLAIN })
+    public String server;
+
+    @Param({ "1", "2", "3", "4" })
+    public int connections;
+
+    /**
+     * chunk size of SegmentWriter, see Config.WRITE_CHUNK_SIZE
+     */
+    @Param({ "131072" })
+    public int chunkSize;
+
+    /**
+     * min size of a segment before it can't be split any more, see Config.MIN_SEGMENT_SIZE
+     */
+    @Param({ "262144" })
+    public int minSegmentSize;
+
+    @Param({ "256" })
+    public int bodyMb;
+
+    /**
+     * algorithm of the StreamingHasher fed by the writers, "none" doesn't hash
+     */
+    @Param({ NONE, "SHA-256" })
+    public String digest;
+
+    /**
+     * connections borrow their chunks from a pool shared by the trial, otherwise each writer has its own
+     */
+    @Param({ "true", "false" })
+    public boolean pooled;
+
+    /**
+     * "mapped" copies the chunks of range segments into mapped windows of the file,
+     * the plain server has no range segments so it always writes with the channel
+     */
+    @Param({ STREAM, MAPPED })
+    public String writeMode;
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+    private File mFile;
+    private long mFileSize;
+    private BufferPool mPool;
+
+    private final AtomicLong mAllocated = new AtomicLong();
+    private long mNanos;
+    private long mBytes;
+    private long mReadBack;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final byte[] data = new byte[bodyMb << 20];
+        new Random(0).nextBytes(data);
+        mFileSize = data.length;
+
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String range = request.getHeader("Range");
+                if (!RANGE.equals(server) || range == null) {
+                    return new MockResponse().setBody(new Buffer().write(data));
+                }
+
+                // bytes=start-end
+                int dash = range.indexOf('-');
+                int start = Integer.parseInt(range.substring("bytes=".length(), dash));
+                int end = dash == range.length() - 1 ?
+                        data.length - 1 : Math.min(data.length - 1, Integer.parseInt(range.substring(dash + 1)));
+                return new MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + data.length)
+                        .setBody(new Buffer().write(data, start, end - start + 1));
+            }
+        });
+        mServer.start();
+
+        mClient = new OkHttpClient();
+        mClient.getDispatcher().setMaxRequestsPerHost(connections);
+        mFile = File.createTempFile("transfer", ".bin");
+        mPool = pooled ? new BufferPool((long) connections * chunkSize) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (mBytes > 0) {
+            double mb = mBytes / (double) (1 << 20);
+            System.out.println(server + " x" + connections + " " + writeMode + ": " +
+                    String.format("%.1f", mb / (mNanos / 1e9)) + " MB/s, " +
+                    String.format("%.0f", mAllocated.get() / mb) + " bytes allocated/MB" +
+                    (NONE.equals(digest) ? "" : ", " + String.format("%.0f%%", mReadBack * 100 / (double) mBytes) +
+                            " read back to hash") +
+                    (mPool == null ? "" : ", buffer pool: " + mPool));
+        }
+
+        mServer.shutdown();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        long start = System.nanoTime();
+
+        final SegmentScheduler scheduler = new SegmentScheduler(minSegmentSize);
+        final ProgressCounter progress = new ProgressCounter(connections);
+        int workers = 1;
+        if (RANGE.equals(server)) {
+            workers = connections;
+            long blockSize = (mFileSize + connections - 1) / connections;
+            for (int i = 0; i < connections && blockSize * i < mFileSize; i++) {
+                scheduler.add(new Segment(i + 1, blockSize * i, Math.min(blockSize * (i + 1), mFileSize) - 1));
+            }
+        } else {
+            scheduler.add(new Segment(1, 0, -1));
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(mFileSize);
+        final StreamingHasher hasher = NONE.equals(digest) ? null : new StreamingHasher(digest, mFile);
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long allocated = allocatedBytes();
+                    try {
+                        work(scheduler, progress, file, hasher);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    mAllocated.addAndGet(allocatedBytes() - allocated);
+                }
+            }, "transfer #" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() == null && hasher != null) {
+            hasher.finish(mFileSize);
+            mReadBack += hasher.getReadBack();
+        }
+        file.close();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (!scheduler.isFinished() || progress.sum() != mFileSize) {
+            throw new IllegalStateException("downloaded " + progress.sum() + " of " + mFileSize);
+        }
+
+        mNanos += System.nanoTime() - start;
+        mBytes += progress.sum();
+        return progress.sum();
+    }
+
+    private void work(SegmentScheduler scheduler, final ProgressCounter progress, RandomAccessFile file,
+                      StreamingHasher hasher) throws IOException {
+        SegmentWriter writer = new SegmentWriter(file.getChannel(), chunkSize, hasher, mPool);
+        if (MAPPED.equals(writeMode)) {
+            writer.setMapped(MAP_WINDOW_SIZE, FLUSH_BYTES);
+        }
+        SegmentWriter.IChunkListener listener = new SegmentWriter.IChunkListener() {
+            @Override
+            public boolean onChunkWritten(Segment segment, int count) {
+                progress.add(segment.getId(), count);
+                return true;
+            }
+        };
+
+        Segment segment;
+        while ((segment = scheduler.acquire()) != null) {
+            Request.Builder builder = new Request.Builder().url(mServer.getUrl("/"));
+            if (segment.isRange()) {
+                builder.header("Range", "bytes=" + segment.getPosition() + "-" + segment.getEnd());
+            }
+
+            Response response = mClient.newCall(builder.build()).execute();
+            try {
+                boolean exhausted = writer.write(response.body().source(), segment, listener);
+                if (segment.isRange() ? segment.isFinished() : exhausted) {
+                    segment.markFinished();
+                }
+            } finally {
+                response.body().close();
+            }
+
+            scheduler.release(segment);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
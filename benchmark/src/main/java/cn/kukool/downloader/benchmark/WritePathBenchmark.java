@@ -0,0 +1,156 @@
+package cn.kukool.downloader.benchmark;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import cn.kukool.downloader.download.Segment;
+import cn.kukool.downloader.download.SegmentWriter;
+import okio.Buffer;
+
+/**
+ * Compares the old 1K read/write loop with the chunked positional write path
+ * when downloading one body from a local server.
+ * <p/>
+ * MB/s is bodyMb divided by the reported time, CPU time per MB of the downloading thread
+ * is printed when each trial finishes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WritePathBenchmark {
+    private static final String LEGACY = "legacy";
+
+    /**
+     * "legacy" for the 1K loop, otherwise the chunk size of SegmentWriter
+     */
+    @Param({ LEGACY, "65536", "131072", "262144", "524288" })
+    public String writePath;
+
+    @Param({ "64" })
+    public int bodyMb;
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+    private File mFile;
+
+    private final ThreadMXBean mThreadBean = ManagementFactory.getThreadMXBean();
+    private long mCpuNanos;
+    private long mBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data = new byte[bodyMb << 20];
+        new Random(0).nextBytes(data);
+        final Buffer body = new Buffer().write(data);
+
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody(body.clone());
+            }
+        });
+        mServer.start();
+
+        mClient = new OkHttpClient();
+        mFile = File.createTempFile("write-path", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (mBytes > 0) {
+            System.out.println(writePath + ": CPU " +
+                    String.format("%.3f", mCpuNanos / 1e6 / (mBytes / (double) (1 << 20))) + " ms/MB");
+        }
+
+        mServer.shutdown();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        long cpu = mThreadBean.getCurrentThreadCpuTime();
+
+        Response response = mClient.newCall(new Request.Builder().url(mServer.getUrl("/")).build()).execute();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        long written;
+        try {
+            written = LEGACY.equals(writePath) ? legacyWrite(response, file) : chunkedWrite(response, file);
+        } finally {
+            file.close();
+            response.body().close();
+        }
+
+        mCpuNanos += mThreadBean.getCurrentThreadCpuTime() - cpu;
+        mBytes += written;
+        return written;
+    }
+
+    private final Object mLock = new Object();
+    private long mAppended;
+
+    private long legacyWrite(Response response, RandomAccessFile file) throws IOException {
+        InputStream input = response.body().byteStream();
+        byte[] buffer = new byte[1024];
+        long total = 0;
+        int offset;
+        while ((offset = input.read(buffer, 0, 1024)) != -1) {
+            file.write(buffer, 0, offset);
+            total += offset;
+            synchronized (mLock) {
+                mAppended += offset;
+            }
+        }
+
+        return total;
+    }
+
+    private long chunkedWrite(Response response, RandomAccessFile file) throws IOException {
+        SegmentWriter writer = new SegmentWriter(file.getChannel(), Integer.parseInt(writePath));
+        Segment segment = new Segment(1, 0, -1);
+        writer.write(response.body().source(), segment, new SegmentWriter.IChunkListener() {
+            @Override
+            public boolean onChunkWritten(Segment segment, int count) {
+                synchronized (mLock) {
+                    mAppended += count;
+                }
+                return true;
+            }
+        });
+
+        return segment.getPosition();
+    }
+}
@@ -10,9 +10,30 @@ public class Config {
     public static final String USER_AGENT = "Kukool/Android-Downloader";
 
     /**
-     * max block size for a single thread
+     * min size of a segment, a segment is only split when it has twice of this left
      */
-    public static final int MAX_BLOCK_SIZE = 2 << 20;
+    public static final int MIN_SEGMENT_SIZE = 256 << 10;
+
+    /**
+     * bytes gathered before one write to the file, between 64K and 512K
+     */
+    public static final int WRITE_CHUNK_SIZE = 128 << 10;
+
+    /**
+     * max bytes of a segment mapped at once by a download thread in mapped write mode,
+     * small enough for the threads of all downloads in a 32-bit address space
+     */
+    public static final int MAP_WINDOW_SIZE = 8 << 20;
+
+    /**
+     * max milliseconds between two saves of download positions
+     */
+    public static final int CHECKPOINT_INTERVAL = 2000;
+
+    /**
+     * download positions are saved earlier when this many bytes are written since last save
+     */
+    public static final int CHECKPOINT_BYTES = 4 << 20;
 
     /**
      * max retry count for a single thread
@@ -20,20 +41,110 @@ public class Config {
     public static final int MAX_THREAD_RETRY = 5;
 
     /**
-     * max thread count for a single downloading
+     * milliseconds of the first retry delay, it doubles with every retry up to the max,
+     * the delay is picked at random below it
+     */
+    public static final long RETRY_BASE_DELAY = 1000;
+    public static final long RETRY_MAX_DELAY = 30000;
+
+    /**
+     * longest Retry-After in milliseconds of a server honored
+     */
+    public static final long MAX_RETRY_AFTER = 5 * 60 * 1000;
+
+    /**
+     * retries all downloads may run at once, tokens given back per second and per successful request
+     */
+    public static final int RETRY_BUDGET = 20;
+    public static final double RETRY_BUDGET_REFILL = 1;
+    public static final double RETRY_BUDGET_RATIO = 0.1;
+
+    /**
+     * failures in a row opening the circuit of a host, and milliseconds it stays open the first time,
+     * doubled up to the max while the probes fail
+     */
+    public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    public static final long CIRCUIT_COOL_DOWN = 5000;
+    public static final long CIRCUIT_MAX_COOL_DOWN = 60000;
+
+    /**
+     * times a download starts over because the file changed on the server before it fails
+     */
+    public static final int MAX_CONTENT_RESTARTS = 2;
+
+    /**
+     * thread count a single downloading starts with, it's adjusted by measured throughput later
      */
     public static final int MAX_THREAD_CNT = 3;
 
+    /**
+     * hard ceiling of connections of a single downloading
+     */
+    public static final int MAX_CONNECTIONS = 8;
+
+    /**
+     * bytes left free on the disk when space is reserved for downloads
+     */
+    public static final long MIN_FREE_SPACE = 5 << 20;
+
     /**
      * max number of downloading working together
      */
     public static final int MAX_DOWNLOADS = 2;
 
+    /**
+     * bytes of the chunk buffers shared by all connections, lent and idle, a connection waits for a buffer
+     * when the lent ones fill it, enough for one chunk per connection of the running downloads
+     */
+    public static final long BUFFER_POOL_CAPACITY = (long) MAX_DOWNLOADS * (MAX_CONNECTIONS + 1) * WRITE_CHUNK_SIZE;
+
+    /**
+     * start the download with less bytes left first among waiting downloads of the same priority
+     */
+    public static final boolean SHORTEST_REMAINING_FIRST = false;
+
+    /**
+     * threads fetching base info and starting downloads, extra work waits in a queue
+     */
+    public static final int SUPERVISOR_POOL_SIZE = MAX_DOWNLOADS;
+
+    /**
+     * threads hashing finished files and linking or copying them for the downloads of the same request,
+     * extra work waits in a queue
+     */
+    public static final int FINISH_POOL_SIZE = 1;
+
+    /**
+     * threads scheduling the retries of download threads and probes
+     */
+    public static final int RETRY_POOL_SIZE = 1;
+
+    /**
+     * priorities of the supervisor, finish, retry and io threads of the download engine
+     */
+    public static final int SUPERVISOR_THREAD_PRIORITY = Thread.MIN_PRIORITY;
+    public static final int FINISH_THREAD_PRIORITY = Thread.MIN_PRIORITY;
+    public static final int RETRY_THREAD_PRIORITY = Thread.MIN_PRIORITY;
+    public static final int IO_THREAD_PRIORITY = Thread.NORM_PRIORITY - 1;
+
     /**
      * default download directory when start a downloading without specifying the download path
      */
     public static final String DEFAULT_DOWNLOAD_DIR = Util.getSdcardPath() + "/Android/data/.downloader";
 
+    /**
+     * interval in milliseconds between two progress callbacks of a downloading
+     */
+    public static final int PROGRESS_INTERVAL = 1000;
+
+    /**
+     * default and minimum interval in milliseconds between two progress frames,
+     * and how long to wait for the ack of a frame before sending the next one anyway
+     */
+    public static final int PROGRESS_FRAME_INTERVAL = 1000;
+    public static final int MIN_PROGRESS_FRAME_INTERVAL = 100;
+    public static final int PROGRESS_FRAME_ACK_TIMEOUT = 5000;
+
     /**
      * When set to true, download manager will send broadcasts for actions.
      */
@@ -48,4 +159,14 @@ public class Config {
      * Read timeout in seconds
      */
     public static final int READ_TIMEOUT = 10;
+
+    /**
+     * max idle connections kept alive in the shared connection pool
+     */
+    public static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * Keep alive duration of idle connections in seconds
+     */
+    public static final int KEEP_ALIVE_DURATION = 300;
 }
@@ -0,0 +1,110 @@
+package cn.kukool.downloader.aidl;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A download in the queue, what {@link IDownloader#getDownloadItemInfo(String)} has without the string keys.
+ */
+public class DownloadItem implements Parcelable {
+    private final String mUid;
+    private final String mUrl;
+    private final String mFileDir;
+    private final String mFileName;
+    private final long mFileSize;
+    private final long mDownloadedSize;
+    private final int mStatus;
+    private final int mPriority;
+    private final String mGroup;
+
+    public DownloadItem(String uid, String url, String fileDir, String fileName,
+                        long fileSize, long downloadedSize, int status, int priority, String group) {
+        mUid = uid;
+        mUrl = url;
+        mFileDir = fileDir;
+        mFileName = fileName;
+        mFileSize = fileSize;
+        mDownloadedSize = downloadedSize;
+        mStatus = status;
+        mPriority = priority;
+        mGroup = group;
+    }
+
+    private DownloadItem(Parcel in) {
+        mUid = in.readString();
+        mUrl = in.readString();
+        mFileDir = in.readString();
+        mFileName = in.readString();
+        mFileSize = in.readLong();
+        mDownloadedSize = in.readLong();
+        mStatus = in.readInt();
+        mPriority = in.readInt();
+        mGroup = in.readString();
+    }
+
+    public String getUid() {
+        return mUid;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getFileDir() {
+        return mFileDir;
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public long getDownloadedSize() {
+        return mDownloadedSize;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public String getGroup() {
+        return mGroup;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mUid);
+        dest.writeString(mUrl);
+        dest.writeString(mFileDir);
+        dest.writeString(mFileName);
+        dest.writeLong(mFileSize);
+        dest.writeLong(mDownloadedSize);
+        dest.writeInt(mStatus);
+        dest.writeInt(mPriority);
+        dest.writeString(mGroup);
+    }
+
+    public static final Creator<DownloadItem> CREATOR = new Creator<DownloadItem>() {
+        @Override
+        public DownloadItem createFromParcel(Parcel in) {
+            return new DownloadItem(in);
+        }
+
+        @Override
+        public DownloadItem[] newArray(int size) {
+            return new DownloadItem[size];
+        }
+    };
+}
@@ -0,0 +1,127 @@
+package cn.kukool.downloader.aidl;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One download of {@link IDownloader#startDownloads(java.util.List)}, the arguments of
+ * {@link IDownloader#startDownloadWithPriority(String, String, String, String, int)} and a group.
+ */
+public class DownloadRequest implements Parcelable {
+    private final String mUid;
+    private final String mUrl;
+    private final String mPostData;
+    private final String mPath;
+    private final int mPriority;
+    private final String mGroup;
+    private final String mDigestAlgorithm;
+    private final String mExpectedDigest;
+    private final String[] mMirrors;
+
+    public DownloadRequest(String uid, String url, String postData, String path, int priority, String group) {
+        this(uid, url, postData, path, priority, group, null, null);
+    }
+
+    /**
+     * @param digestAlgorithm MD5, SHA-1 or SHA-256 computed while downloading, or null
+     * @param expectedDigest  hex digest the file must have, or null to compute it only
+     */
+    public DownloadRequest(String uid, String url, String postData, String path, int priority, String group,
+                           String digestAlgorithm, String expectedDigest) {
+        this(uid, url, postData, path, priority, group, digestAlgorithm, expectedDigest, null);
+    }
+
+    /**
+     * @param mirrors other urls of the same file, segments are downloaded from the fastest of them and url
+     */
+    public DownloadRequest(String uid, String url, String postData, String path, int priority, String group,
+                           String digestAlgorithm, String expectedDigest, String[] mirrors) {
+        mUid = uid;
+        mUrl = url;
+        mPostData = postData;
+        mPath = path;
+        mPriority = priority;
+        mGroup = group;
+        mDigestAlgorithm = digestAlgorithm;
+        mExpectedDigest = expectedDigest;
+        mMirrors = mirrors;
+    }
+
+    private DownloadRequest(Parcel in) {
+        mUid = in.readString();
+        mUrl = in.readString();
+        mPostData = in.readString();
+        mPath = in.readString();
+        mPriority = in.readInt();
+        mGroup = in.readString();
+        mDigestAlgorithm = in.readString();
+        mExpectedDigest = in.readString();
+        mMirrors = in.createStringArray();
+    }
+
+    public String getUid() {
+        return mUid;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getPostData() {
+        return mPostData;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public String getGroup() {
+        return mGroup;
+    }
+
+    public String getDigestAlgorithm() {
+        return mDigestAlgorithm;
+    }
+
+    public String getExpectedDigest() {
+        return mExpectedDigest;
+    }
+
+    public String[] getMirrors() {
+        return mMirrors;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mUid);
+        dest.writeString(mUrl);
+        dest.writeString(mPostData);
+        dest.writeString(mPath);
+        dest.writeInt(mPriority);
+        dest.writeString(mGroup);
+        dest.writeString(mDigestAlgorithm);
+        dest.writeString(mExpectedDigest);
+        dest.writeStringArray(mMirrors);
+    }
+
+    public static final Creator<DownloadRequest> CREATOR = new Creator<DownloadRequest>() {
+        @Override
+        public DownloadRequest createFromParcel(Parcel in) {
+            return new DownloadRequest(in);
+        }
+
+        @Override
+        public DownloadRequest[] newArray(int size) {
+            return new DownloadRequest[size];
+        }
+    };
+}
@@ -0,0 +1,116 @@
+package cn.kukool.downloader.aidl;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Progress of all downloads that changed since the last frame, sent once per tick instead of a call per download.
+ * <p/>
+ * Downloads are referred to by index in a uid table the receiver keeps. A frame adds the uids from
+ * {@link #getUidBase()} on, a base of 0 starts a new table. Entry i of the arrays is the download
+ * at table index {@link #getIndices()}[i].
+ */
+public class ProgressFrame implements Parcelable {
+    private final long mSequence;
+    private final long mTimestamp;
+    private final int mUidBase;
+    private final String[] mNewUids;
+    private final int[] mIndices;
+    private final long[] mDownloadedSizes;
+    private final long[] mFileSizes;
+    private final int[] mStatuses;
+
+    public ProgressFrame(long sequence, long timestamp, int uidBase, String[] newUids,
+                         int[] indices, long[] downloadedSizes, long[] fileSizes, int[] statuses) {
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mUidBase = uidBase;
+        mNewUids = newUids;
+        mIndices = indices;
+        mDownloadedSizes = downloadedSizes;
+        mFileSizes = fileSizes;
+        mStatuses = statuses;
+    }
+
+    private ProgressFrame(Parcel in) {
+        mSequence = in.readLong();
+        mTimestamp = in.readLong();
+        mUidBase = in.readInt();
+        mNewUids = in.createStringArray();
+        mIndices = in.createIntArray();
+        mDownloadedSizes = in.createLongArray();
+        mFileSizes = in.createLongArray();
+        mStatuses = in.createIntArray();
+    }
+
+    /**
+     * pass it to {@link IDownloader#ackProgressFrame(long)} when the frame is handled
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getUidBase() {
+        return mUidBase;
+    }
+
+    public String[] getNewUids() {
+        return mNewUids;
+    }
+
+    public int size() {
+        return mIndices.length;
+    }
+
+    public int[] getIndices() {
+        return mIndices;
+    }
+
+    public long[] getDownloadedSizes() {
+        return mDownloadedSizes;
+    }
+
+    public long[] getFileSizes() {
+        return mFileSizes;
+    }
+
+    /**
+     * statuses as returned by {@link IDownloader#getDownloadItemStatus(String)}
+     */
+    public int[] getStatuses() {
+        return mStatuses;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mSequence);
+        dest.writeLong(mTimestamp);
+        dest.writeInt(mUidBase);
+        dest.writeStringArray(mNewUids);
+        dest.writeIntArray(mIndices);
+        dest.writeLongArray(mDownloadedSizes);
+        dest.writeLongArray(mFileSizes);
+        dest.writeIntArray(mStatuses);
+    }
+
+    public static final Creator<ProgressFrame> CREATOR = new Creator<ProgressFrame>() {
+        @Override
+        public ProgressFrame createFromParcel(Parcel in) {
+            return new ProgressFrame(in);
+        }
+
+        @Override
+        public ProgressFrame[] newArray(int size) {
+            return new ProgressFrame[size];
+        }
+    };
+}
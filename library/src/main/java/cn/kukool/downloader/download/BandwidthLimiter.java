@@ -0,0 +1,177 @@
+package cn.kukool.downloader.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token buckets limiting how fast downloads read. The global rate is shared by the running downloads
+ * in proportion to their weights, a download with its own cap lower than its share gives the rest
+ * to the others. Each download owns one {@link Share}, its download threads take tokens from it
+ * after every chunk and sleep while it's in debt.
+ * <p/>
+ * A rate of 0 means unlimited, an unlimited share returns without locking anything.
+ */
+public class BandwidthLimiter {
+    /* nanoseconds in one second */
+    private static final long SECOND = 1000000000L;
+
+    private static BandwidthLimiter instance = null;
+
+    public static synchronized BandwidthLimiter getInstance() {
+        if (instance == null)
+            instance = new BandwidthLimiter();
+        return instance;
+    }
+
+    /* bytes per second shared by all downloads, 0 is unlimited */
+    private long mGlobalRate;
+    private final List<Share> mActiveShares = new ArrayList<>();
+
+    public static class Share {
+        private final BandwidthLimiter mLimiter;
+
+        /* guarded by mLimiter */
+        private long mCap;
+        private int mWeight = 1;
+
+        /* bytes per second this share may read now, 0 is unlimited */
+        private volatile long mRate;
+
+        /* bucket state, guarded by this */
+        private long mTokens;
+        private long mLastRefill;
+
+        Share(BandwidthLimiter limiter) {
+            mLimiter = limiter;
+        }
+
+        /**
+         * Take count bytes from the bucket.
+         *
+         * @return nanoseconds the caller should wait before reading again, 0 to go on
+         */
+        public long reserve(int count) {
+            long rate = mRate;
+            if (rate <= 0) {
+                return 0;
+            }
+
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (mLastRefill == 0) {
+                    mLastRefill = now;
+                    mTokens = rate;
+                } else if (now > mLastRefill) {
+                    // at most one second of tokens can be saved up
+                    mTokens = Math.min(rate, mTokens + (now - mLastRefill) * rate / SECOND);
+                    mLastRefill = now;
+                }
+
+                mTokens -= count;
+                return mTokens >= 0 ? 0 : -mTokens * SECOND / rate;
+            }
+        }
+
+        public long getRate() {
+            return mRate;
+        }
+
+        private void setRate(long rate) {
+            if (rate != mRate) {
+                synchronized (this) {
+                    mRate = rate;
+                    mLastRefill = 0;
+                }
+            }
+        }
+    }
+
+    public Share newShare() {
+        return new Share(this);
+    }
+
+    public synchronized void setGlobalRate(long bytesPerSecond) {
+        mGlobalRate = Math.max(0, bytesPerSecond);
+        redistribute();
+    }
+
+    public synchronized long getGlobalRate() {
+        return mGlobalRate;
+    }
+
+    /**
+     * @param bytesPerSecond cap of this download, 0 is unlimited
+     */
+    public synchronized void setCap(Share share, long bytesPerSecond) {
+        share.mCap = Math.max(0, bytesPerSecond);
+        redistribute();
+    }
+
+    /**
+     * @param weight share of the global rate relative to the other downloads, at least 1
+     */
+    public synchronized void setWeight(Share share, int weight) {
+        share.mWeight = Math.max(1, weight);
+        redistribute();
+    }
+
+    /**
+     * Called when the download of share starts reading.
+     */
+    public synchronized void activate(Share share) {
+        if (!mActiveShares.contains(share)) {
+            mActiveShares.add(share);
+            redistribute();
+        }
+    }
+
+    /**
+     * Called when the download of share stops, its part of the global rate goes to the others.
+     */
+    public synchronized void deactivate(Share share) {
+        if (mActiveShares.remove(share)) {
+            redistribute();
+        }
+    }
+
+    private void redistribute() {
+        if (mGlobalRate <= 0) {
+            for (Share share : mActiveShares) {
+                share.setRate(share.mCap);
+            }
+            return;
+        }
+
+        // water filling: shares capped below their fair part take the cap, the rest is split again
+        List<Share> open = new ArrayList<>(mActiveShares);
+        long left = mGlobalRate;
+        boolean changed = true;
+        while (changed && !open.isEmpty()) {
+            changed = false;
+
+            long weights = 0;
+            for (Share share : open) {
+                weights += share.mWeight;
+            }
+
+            for (int i = open.size() - 1; i >= 0; i--) {
+                Share share = open.get(i);
+                long fair = left * share.mWeight / weights;
+                if (share.mCap > 0 && share.mCap <= fair) {
+                    share.setRate(share.mCap);
+                    left -= share.mCap;
+                    open.remove(i);
+                    changed = true;
+                }
+            }
+        }
+
+        long weights = 0;
+        for (Share share : open) {
+            weights += share.mWeight;
+        }
+        for (Share share : open) {
+            share.setRate(Math.max(1, left * share.mWeight / weights));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package cn.kukool.downloader.download;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Chunk buffers shared by the connections of all downloads, see {@link DownloadStack#getBufferPool()}.
+ * A connection borrows a buffer for the reads and writes of one response and gives it back when the
+ * response ends, so buffers are reused instead of allocated for every connection.
+ * <p/>
+ * The capacity is a hard cap on the bytes lent: a borrow that would go over it waits until buffers are
+ * given back, so connections over the cap stall instead of allocating. Only a buffer larger than the
+ * capacity itself is lent over it, when nothing else is lent. Idle buffers are kept only while they and
+ * the lent ones fit in the capacity, and are dropped by {@link #trim()} when memory is low.
+ */
+public class BufferPool {
+    private final long mCapacity;
+    private final ArrayDeque<ByteBuffer> mIdle = new ArrayDeque<>();
+    private long mIdleBytes;
+    private long mLentBytes;
+
+    private long mHits;
+    private long mMisses;
+    private long mWaits;
+
+    /**
+     * @param capacity bytes of the buffers lent and kept at most
+     */
+    public BufferPool(long capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return a cleared heap buffer of size bytes, give it back with {@link #release(ByteBuffer)}
+     * @throws InterruptedIOException if the thread is interrupted while waiting for buffers to be given back
+     */
+    public synchronized ByteBuffer acquire(int size) throws InterruptedIOException {
+        if (mLentBytes > 0 && mLentBytes + size > mCapacity) {
+            mWaits++;
+            do {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a buffer");
+                }
+            } while (mLentBytes > 0 && mLentBytes + size > mCapacity);
+        }
+
+        ByteBuffer buffer = null;
+        Iterator<ByteBuffer> iterator = mIdle.iterator();
+        while (iterator.hasNext()) {
+            ByteBuffer idle = iterator.next();
+            if (idle.capacity() == size) {
+                iterator.remove();
+                mIdleBytes -= size;
+                buffer = idle;
+                break;
+            }
+        }
+
+        if (buffer == null) {
+            mMisses++;
+            if (mIdleBytes + mLentBytes + size > mCapacity) {
+                // make room with idle buffers of another size
+                trimTo(mCapacity - mLentBytes - size);
+            }
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            mHits++;
+        }
+
+        mLentBytes += size;
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        mLentBytes -= size;
+        if (mIdleBytes + mLentBytes + size <= mCapacity) {
+            mIdle.push(buffer);
+            mIdleBytes += size;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drop the idle buffers.
+     */
+    public synchronized void trim() {
+        trimTo(0);
+    }
+
+    private void trimTo(long bytes) {
+        while (mIdleBytes > Math.max(0, bytes)) {
+            mIdleBytes -= mIdle.removeLast().capacity();
+        }
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return borrows which waited for the cap
+     */
+    public synchronized long getWaits() {
+        return mWaits;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d hits, %d misses, %d waits, %d KB idle, %d KB lent",
+                mHits, mMisses, mWaits, mIdleBytes >> 10, mLentBytes >> 10);
+    }
+}
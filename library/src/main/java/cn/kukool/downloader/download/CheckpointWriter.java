@@ -0,0 +1,130 @@
+package cn.kukool.downloader.download;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.kukool.downloader.Config;
+import cn.kukool.downloader.util.Log;
+
+/**
+ * Collects segment positions of all downloads while streaming and saves them
+ * in one transaction every {@link Config#CHECKPOINT_INTERVAL} milliseconds,
+ * or earlier when {@link Config#CHECKPOINT_BYTES} have been written since the last save.
+ */
+public class CheckpointWriter {
+    private static final String TAG = "CheckpointWriter";
+
+    private static CheckpointWriter instance = null;
+
+    public static synchronized CheckpointWriter getInstance(Context context) {
+        if (instance == null)
+            instance = new CheckpointWriter(DownloaderDatabase.getInstance(context));
+        return instance;
+    }
+
+    private final DownloaderDatabase mDownloaderDb;
+
+    /* uid -> segment id -> position, guarded by this */
+    private Map<String, Map<Integer, Long>> mPositions = new HashMap<>();
+    private int mDirtyBytes;
+    private boolean mScheduled;
+
+    /* held while positions taken by a flush are written, so forget waits for them */
+    private final Object mFlushLock = new Object();
+
+    private Handler mHandler;
+
+    private CheckpointWriter(DownloaderDatabase db) {
+        mDownloaderDb = db;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Remember the current position of segment, written is the bytes written since last call.
+     */
+    public void mark(String uid, Segment segment, int written) {
+        boolean flushNow;
+        boolean schedule;
+
+        synchronized (this) {
+            Map<Integer, Long> positions = mPositions.get(uid);
+            if (positions == null) {
+                positions = new HashMap<>();
+                mPositions.put(uid, positions);
+            }
+            positions.put(segment.getId(), segment.getPosition());
+
+            mDirtyBytes += written;
+            flushNow = mDirtyBytes >= Config.CHECKPOINT_BYTES;
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+
+        if (flushNow) {
+            requestFlush();
+        } else if (schedule) {
+            getHandler().postDelayed(mFlushRunnable, Config.CHECKPOINT_INTERVAL);
+        }
+    }
+
+    /**
+     * Drop positions not saved yet, called when the records of uid are deleted or re-created.
+     * It waits for a flush writing them already, so they don't land on the new records.
+     */
+    public void forget(String uid) {
+        synchronized (mFlushLock) {
+            synchronized (this) {
+                mPositions.remove(uid);
+            }
+        }
+    }
+
+    /**
+     * Save the positions as soon as possible without blocking the caller.
+     */
+    public void requestFlush() {
+        Handler handler = getHandler();
+        handler.removeCallbacks(mFlushRunnable);
+        handler.post(mFlushRunnable);
+    }
+
+    public void flush() {
+        synchronized (mFlushLock) {
+            Map<String, Map<Integer, Long>> positions;
+
+            synchronized (this) {
+                positions = mPositions;
+                mPositions = new HashMap<>();
+                mDirtyBytes = 0;
+                mScheduled = false;
+            }
+
+            if (positions.isEmpty()) {
+                return;
+            }
+
+            try {
+                mDownloaderDb.updatePositions(positions);
+            } catch (Exception e) {
+                Log.error(TAG, "failed to save segment positions", e);
+            }
+        }
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandler = new Handler(DownloadStack.getLooper());
+        }
+
+        return mHandler;
+    }
+}
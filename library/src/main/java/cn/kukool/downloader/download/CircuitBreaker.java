@@ -0,0 +1,198 @@
+package cn.kukool.downloader.download;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import cn.kukool.downloader.Config;
+import cn.kukool.downloader.util.Log;
+
+/**
+ * Stops the requests to a host failing many times in a row. Requests are parked while the circuit is
+ * open, after a cool-down one of them probes the host. If the probe succeeds all parked requests run
+ * together, otherwise the circuit opens again for twice as long.
+ * <p/>
+ * A parked request is the retry runnable of a download thread, it isn't counted as a retry.
+ */
+public class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<>();
+
+    public static CircuitBreaker forHost(String host) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(host);
+                sBreakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * @param code http status code, or -1 if the request failed without a response
+     * @return true if the code tells the host is failing, not the request
+     */
+    public static boolean isHostFailure(int code) {
+        return code == -1 || code == 408 || code == 429 || code / 100 == 5;
+    }
+
+    private final String mHost;
+
+    private int mState = CLOSED;
+    private int mFailures;
+    private long mCoolDown;
+    private long mOpenUntil;
+
+    /* a request is probing the host in HALF_OPEN */
+    private boolean mProbing;
+    private final List<Runnable> mParked = new ArrayList<>();
+    private ScheduledFuture<?> mWake;
+
+    private final Runnable mWakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            wakeProbe();
+        }
+    };
+
+    private CircuitBreaker(String host) {
+        mHost = host;
+    }
+
+    /**
+     * @param retry run when the host may be tried again if the request can't be sent now,
+     *              null to not park it
+     * @return true if the request can be sent now
+     */
+    public synchronized boolean allowRequest(Runnable retry) {
+        if (mState == OPEN && SystemClock.elapsedRealtime() >= mOpenUntil) {
+            mState = HALF_OPEN;
+            mProbing = false;
+        }
+
+        if (mState == CLOSED) {
+            return true;
+        }
+
+        if (mState == HALF_OPEN && !mProbing) {
+            // this request is the probe
+            mProbing = true;
+            return true;
+        }
+
+        if (retry != null && !mParked.contains(retry)) {
+            mParked.add(retry);
+        }
+        return false;
+    }
+
+    /**
+     * @return milliseconds before the host may be tried again, 0 if it may be now
+     */
+    public synchronized long getRemaining() {
+        if (mState == OPEN) {
+            return Math.max(0, mOpenUntil - SystemClock.elapsedRealtime());
+        }
+        return mState == HALF_OPEN && mProbing ? mCoolDown : 0;
+    }
+
+    public synchronized void cancel(Runnable retry) {
+        mParked.remove(retry);
+    }
+
+    /**
+     * Called when the host answers a request without a failure.
+     */
+    public void onSuccess() {
+        List<Runnable> parked;
+        synchronized (this) {
+            mFailures = 0;
+            if (mState == CLOSED) {
+                return;
+            }
+
+            mState = CLOSED;
+            mCoolDown = 0;
+            mProbing = false;
+            if (mWake != null) {
+                mWake.cancel(false);
+                mWake = null;
+            }
+            parked = new ArrayList<>(mParked);
+            mParked.clear();
+        }
+
+        Log.debug(TAG, mHost + " closed, waking " + parked.size() + " requests");
+        for (Runnable retry : parked) {
+            DownloadExecutors.getRetryExecutor().execute(retry);
+        }
+    }
+
+    /**
+     * Called when a request to the host fails.
+     *
+     * @param retryAfter milliseconds asked by the host, it opens the circuit at once for as long
+     */
+    public synchronized void onFailure(long retryAfter) {
+        mFailures++;
+        if (mState == HALF_OPEN || retryAfter > 0
+                || (mState == CLOSED && mFailures >= Config.CIRCUIT_FAILURE_THRESHOLD)) {
+            open(retryAfter);
+        }
+    }
+
+    private void open(long retryAfter) {
+        mCoolDown = mCoolDown == 0 ? Config.CIRCUIT_COOL_DOWN
+                : Math.min(mCoolDown * 2, Config.CIRCUIT_MAX_COOL_DOWN);
+        mCoolDown = Math.max(mCoolDown, retryAfter);
+        mState = OPEN;
+        mProbing = false;
+        mOpenUntil = SystemClock.elapsedRealtime() + mCoolDown;
+        scheduleWake();
+
+        Log.debug(TAG, mHost + " open for " + mCoolDown + "ms after " + mFailures + " failures");
+    }
+
+    private void scheduleWake() {
+        if (mWake != null) {
+            mWake.cancel(false);
+        }
+        mWake = DownloadExecutors.getRetryExecutor().schedule(mWakeRunnable, mCoolDown, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The cool-down passed, or the last probe never told how it went because its thread was stopped:
+     * let one parked request probe the host.
+     */
+    private void wakeProbe() {
+        Runnable probe;
+        synchronized (this) {
+            mWake = null;
+            if (mState == CLOSED) {
+                return;
+            }
+
+            mState = HALF_OPEN;
+            mProbing = false;
+            if (mParked.isEmpty()) {
+                return;
+            }
+
+            probe = mParked.remove(0);
+            scheduleWake();
+        }
+
+        probe.run();
+    }
+}
@@ -0,0 +1,154 @@
+package cn.kukool.downloader.download;
+
+/**
+ * Decides how many connections one download uses, additive increase and multiplicative decrease:
+ * <ul>
+ * <li>one more connection while the throughput keeps rising by {@link #GAIN}</li>
+ * <li>one less when the last added connection didn't help, then hold for a while</li>
+ * <li>half of them when the server refuses with 429 or 503, the result also becomes the ceiling</li>
+ * <li>one less for other server errors</li>
+ * </ul>
+ * Not thread safe, callers synchronize.
+ */
+public class ConnectionController {
+    public static final String DECISION_START = "start";
+    public static final String DECISION_INCREASE = "increase";
+    public static final String DECISION_PLATEAU = "plateau";
+    public static final String DECISION_HOLD = "hold";
+    public static final String DECISION_THROTTLED = "throttled";
+    public static final String DECISION_SERVER_ERROR = "server error";
+
+    /* throughput has to rise this much to count as rising */
+    private static final float GAIN = 0.1f;
+
+    /* samples to wait after a change before judging it */
+    private static final int SETTLE_SAMPLES = 2;
+
+    /* samples to wait after a plateau or an error before probing again */
+    private static final int HOLD_SAMPLES = 10;
+
+    private final int mMaxConnections;
+    private int mCeiling;
+    private int mTarget;
+
+    private float mBaseline;
+    private boolean mProbing;
+    private int mWait;
+
+    private String mDecision = DECISION_START;
+
+    public ConnectionController(int initialConnections, int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mCeiling = mMaxConnections;
+        mTarget = Math.max(1, Math.min(initialConnections, mMaxConnections));
+    }
+
+    public int getTarget() {
+        return mTarget;
+    }
+
+    public String getDecision() {
+        return mDecision;
+    }
+
+    /**
+     * Forget the measured throughput, called when the download starts again.
+     * The learned connection count and ceiling are kept.
+     */
+    public void restart() {
+        mBaseline = 0;
+        mProbing = false;
+        mWait = SETTLE_SAMPLES;
+    }
+
+    /**
+     * Feed the bytes downloaded by all connections in the last elapsed milliseconds.
+     *
+     * @return true if the target changed
+     */
+    public boolean onSample(long bytes, long elapsed) {
+        if (elapsed <= 0) {
+            return false;
+        }
+
+        float throughput = bytes / (float) elapsed;
+        if (mWait > 0) {
+            mWait--;
+            return false;
+        }
+
+        if (mBaseline <= 0) {
+            mBaseline = throughput;
+            return increase();
+        }
+
+        if (mProbing) {
+            mProbing = false;
+            if (throughput > mBaseline * (1 + GAIN)) {
+                mBaseline = throughput;
+                return increase();
+            }
+
+            // the last connection didn't help, take it back
+            mBaseline = throughput;
+            mWait = HOLD_SAMPLES;
+            return decide(mTarget - 1, DECISION_PLATEAU);
+        }
+
+        // held long enough, measure again and probe
+        mBaseline = throughput;
+        return increase();
+    }
+
+    /**
+     * Called when a request of this download gets an error response.
+     *
+     * @return true if the target changed
+     */
+    public boolean onServerError(int code) {
+        mProbing = false;
+        mBaseline = 0;
+        mWait = HOLD_SAMPLES;
+
+        if (code == 429 || code == 503) {
+            int target = Math.max(1, mTarget / 2);
+            mCeiling = target;
+            return decide(target, DECISION_THROTTLED);
+        }
+
+        return decide(mTarget - 1, DECISION_SERVER_ERROR);
+    }
+
+    private boolean increase() {
+        if (mTarget >= mCeiling) {
+            mDecision = DECISION_HOLD;
+            mWait = HOLD_SAMPLES;
+
+            // slowly give a ceiling learned from throttling back
+            if (mCeiling < mMaxConnections) {
+                mCeiling++;
+            }
+            return false;
+        }
+
+        mProbing = true;
+        mWait = SETTLE_SAMPLES;
+        return decide(mTarget + 1, DECISION_INCREASE);
+    }
+
+    private boolean decide(int target, String decision) {
+        target = Math.max(1, Math.min(target, mCeiling));
+        mDecision = decision;
+        if (target == mTarget) {
+            return false;
+        }
+
+        mTarget = target;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mDecision + " -> " + mTarget + " (ceiling " + mCeiling + ")";
+    }
+}
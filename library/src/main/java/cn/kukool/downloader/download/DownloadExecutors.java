@@ -0,0 +1,133 @@
+package cn.kukool.downloader.download;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.kukool.downloader.Config;
+
+/**
+ * Threads used by the download engine:
+ * <ul>
+ * <li>supervisor: fetches base info and starts the segments of a download, bounded by {@link Config#SUPERVISOR_POOL_SIZE}</li>
+ * <li>finish: hashes finished files and links or copies them for other downloads, bounded by
+ * {@link Config#FINISH_POOL_SIZE}, so large files don't hold the starts of other downloads</li>
+ * <li>retry: schedules the retries of download threads and probes after backing off</li>
+ * <li>io: runs the http calls, the number of running calls is limited by the dispatcher of the http client</li>
+ * </ul>
+ * All of them are created lazily and idle threads exit after {@link #KEEP_ALIVE_SECONDS}.
+ */
+public class DownloadExecutors {
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sSupervisorExecutor;
+    private static ThreadPoolExecutor sFinishExecutor;
+    private static ScheduledThreadPoolExecutor sRetryExecutor;
+    private static ThreadPoolExecutor sIoExecutor;
+
+    private DownloadExecutors() {
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + " #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(mPriority);
+            return thread;
+        }
+    }
+
+    public static synchronized ExecutorService getSupervisorExecutor() {
+        if (sSupervisorExecutor == null) {
+            sSupervisorExecutor = new ThreadPoolExecutor(
+                    Config.SUPERVISOR_POOL_SIZE, Config.SUPERVISOR_POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("Download supervisor", Config.SUPERVISOR_THREAD_PRIORITY));
+            sSupervisorExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return sSupervisorExecutor;
+    }
+
+    public static synchronized ExecutorService getFinishExecutor() {
+        if (sFinishExecutor == null) {
+            sFinishExecutor = new ThreadPoolExecutor(
+                    Config.FINISH_POOL_SIZE, Config.FINISH_POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("Download finish", Config.FINISH_THREAD_PRIORITY));
+            sFinishExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return sFinishExecutor;
+    }
+
+    public static synchronized ScheduledExecutorService getRetryExecutor() {
+        if (sRetryExecutor == null) {
+            sRetryExecutor = new ScheduledThreadPoolExecutor(Config.RETRY_POOL_SIZE,
+                    new NamedThreadFactory("Download retry", Config.RETRY_THREAD_PRIORITY));
+            sRetryExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sRetryExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return sRetryExecutor;
+    }
+
+    /**
+     * Executor for the dispatcher of the http client. It isn't bounded here because
+     * the dispatcher already limits the running calls and expects its executor to accept them all.
+     */
+    public static synchronized ExecutorService getIoExecutor() {
+        if (sIoExecutor == null) {
+            sIoExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new NamedThreadFactory("Download io", Config.IO_THREAD_PRIORITY));
+        }
+
+        return sIoExecutor;
+    }
+
+    public static int getSupervisorPoolSize() {
+        return Config.SUPERVISOR_POOL_SIZE;
+    }
+
+    public static int getFinishPoolSize() {
+        return Config.FINISH_POOL_SIZE;
+    }
+
+    public static int getRetryPoolSize() {
+        return Config.RETRY_POOL_SIZE;
+    }
+
+    /**
+     * @return supervisor tasks waiting for a free thread
+     */
+    public static synchronized int getPendingSupervisorCount() {
+        return sSupervisorExecutor == null ? 0 : sSupervisorExecutor.getQueue().size();
+    }
+
+    /**
+     * @return finished files waiting to be hashed, linked or copied
+     */
+    public static synchronized int getPendingFinishCount() {
+        return sFinishExecutor == null ? 0 : sFinishExecutor.getQueue().size();
+    }
+}
@@ -8,11 +8,21 @@ import android.os.Message;
 import android.os.StatFs;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import cn.kukool.downloader.Config;
 import cn.kukool.downloader.R;
+import cn.kukool.downloader.aidl.DownloadRequest;
 import cn.kukool.downloader.util.Log;
 
 public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
@@ -22,7 +32,13 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     private IDownloadHelperListener mDownloadListener;
 
     private final ConcurrentMap<String, FileDownloader> mDownloadingList = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, FileDownloader> mDownloadedList = new ConcurrentHashMap<>();
+
+    /* downloads waiting to start and uids of the started ones */
+    private final TaskQueue mWaitingQueue = new TaskQueue(Config.SHORTEST_REMAINING_FIRST);
+    private final Set<String> mRunning = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /* uid of a download -> downloads of the same request getting their file from it, guarded by itself */
+    private final Map<String, List<FileDownloader>> mFollowers = new HashMap<>();
 
     public interface IDownloadHelperListener {
         // called when task added
@@ -80,25 +96,32 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
             int blockIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_BLOCKSIZE);
             int uidIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_UID);
             int infoIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_INFO);
-            String lastUid = null;
+            int priorityIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_PRIORITY);
+            int groupIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_GROUP);
+            int digestIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_DIGEST);
+            int etagIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_ETAG);
+            int lastModifiedIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_LAST_MODIFIED);
+            int mirrorsIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_MIRRORS);
+            int remainingIndex = cursor.getColumnIndex(DownloaderDatabase.COLUMN_REMAINING);
             while (!cursor.isAfterLast()) {
                 String url = cursor.getString(urlIndex);
                 String postData = cursor.getString(postDataIndex);
                 String filePath = cursor.getString(pathIndex);
                 String fileName = cursor.getString(fileNameIndex);
                 String uid = cursor.getString(uidIndex);
-                int fileSize = cursor.getInt(sizeIndex);
-                int block = cursor.getInt(blockIndex);
+                long fileSize = cursor.getLong(sizeIndex);
+                long block = cursor.getLong(blockIndex);
                 String info = cursor.getString(infoIndex);
-                if (lastUid == null || !lastUid.equals(uid)) {
-                    FileDownloader downer = new FileDownloader(context,
-                            url, postData, uid,
-                            filePath, fileName, fileSize,
-                            block, info);
-                    mDownloadingList.put(uid, downer);
-                    onDownloadTaskReadd(this, downer);
-                    lastUid = uid;
-                }
+                long remaining = cursor.isNull(remainingIndex) ? -1 : cursor.getLong(remainingIndex);
+                FileDownloader downer = new FileDownloader(context,
+                        url, postData, uid,
+                        filePath, fileName, fileSize,
+                        block, info, cursor.getInt(priorityIndex), cursor.getString(groupIndex),
+                        cursor.getString(digestIndex), remaining);
+                downer.setValidators(cursor.getString(etagIndex), cursor.getString(lastModifiedIndex));
+                downer.setMirrors(cursor.getString(mirrorsIndex));
+                mDownloadingList.put(uid, downer);
+                onDownloadTaskReadd(this, downer);
                 cursor.moveToNext();
             }
         }
@@ -109,38 +132,7 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
             cursor.close();
         }
 
-        cursor = db.getDownloadedList();
-        if (cursor != null && cursor.getCount() > 0) {
-            int urlIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_URL);
-            int postDataIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_POSTDATA);
-            int dirIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_DIR);
-            int fileNameIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_FILENAME);
-            int fileSizeIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_SIZE);
-            int dateIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_DATE);
-            int uidIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_UID);
-            int infoIndex = cursor.getColumnIndexOrThrow(DownloaderDatabase.COLUMN_INFO);
-
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                FileDownloader downer = new FileDownloader(context,
-                        cursor.getString(urlIndex), // url
-                        cursor.getString(postDataIndex), // post data
-                        cursor.getString(uidIndex), // uid
-                        cursor.getString(dirIndex), // file dir
-                        cursor.getString(fileNameIndex), // file name
-                        cursor.getInt(fileSizeIndex), // file szie
-                        0, // block size
-                        cursor.getString(infoIndex)); // info
-                downer.setDownloadedDate(cursor.getLong(dateIndex));
-                mDownloadedList.put(cursor.getString(uidIndex), downer);
-                cursor.moveToNext();
-            }
-        }
-
-        if (cursor != null) {
-            cursor.close();
-        }
-
+        // the history isn't loaded here, it's read from the database page by page when asked for
         db.close();
     }
 
@@ -152,28 +144,73 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
         return mDownloadingList.get(uid);
     }
 
-    public FileDownloader getDownloaded(String uid) {
-        FileDownloader downloader = mDownloadedList.get(uid);
-        if (downloader != null) {
-            File file = new File(downloader.getFileDir() + "/" + downloader.getFileName());
-            if (file.exists() && file.isFile())
-                return downloader;
-            else {
-                delDownloader(uid, false);
-                mDownloadedList.remove(uid);
-            }
+    /**
+     * @return the finished download of uid, or null if there's none or its file is gone
+     */
+    public DownloadRecord getDownloaded(String uid) {
+        if (uid == null) {
+            return null;
+        }
+
+        DownloaderDatabase db = DownloaderDatabase.getInstance(mContext);
+        DownloadRecord record = db.getDownloaded(uid);
+        if (record != null && !record.getFile().isFile()) {
+            db.deleteDownloaded(record.getFileDir(), record.getFileName());
+            record = null;
         }
 
-        return null;
+        return record;
+    }
+
+    /**
+     * @return one page of finished downloads, the latest first
+     */
+    public List<DownloadRecord> getDownloadedList(int offset, int limit) {
+        return DownloaderDatabase.getInstance(mContext).getDownloadedPage(offset, limit);
+    }
+
+    public long getDownloadedCount() {
+        return DownloaderDatabase.getInstance(mContext).getDownloadedCount();
     }
 
     public boolean stopDownloader(String uid) {
+        boolean flag = stop(uid);
+        downloadNext();
+        return flag;
+    }
+
+    /**
+     * Pause downloads and start the waiting ones once, not after each of them.
+     *
+     * @return number of downloads paused
+     */
+    public int stopDownloaders(Collection<String> uids) {
+        int count = 0;
+        for (String uid : uids) {
+            if (stop(uid)) {
+                count++;
+            }
+        }
+
+        downloadNext();
+        return count;
+    }
+
+    private boolean stop(String uid) {
         FileDownloader downloader = getDownloading(uid);
         if (downloader != null) {
+            if (unfollow(downloader)) {
+                onDownloadTaskPause(this, downloader);
+                return true;
+            }
+
+            mWaitingQueue.remove(uid);
+            mRunning.remove(uid);
+            StorageManager.getInstance().release(uid);
             boolean flag = downloader.stopDownload();
+            handOver(downloader);
             onDownloadTaskPause(this, downloader);
             Log.debug(TAG, "stopDownloader");
-            downloadNext();
             return flag;
         }
 
@@ -181,6 +218,8 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     public void stopAllTask() {
+        mWaitingQueue.clear();
+        mRunning.clear();
         for (FileDownloader loader : mDownloadingList.values()) {
             loader.stopDownload();
             onDownloadTaskPause(this, loader);
@@ -194,12 +233,44 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     public boolean continueDownloader(String uid) {
+        boolean flag = resume(uid);
+        if (flag) {
+            downloadNext();
+        }
+        return flag;
+    }
+
+    /**
+     * Queue downloads again and start the waiting ones once all of them are queued,
+     * so the priorities decide which start.
+     *
+     * @return number of downloads found
+     */
+    public int continueDownloaders(Collection<String> uids) {
+        int count = 0;
+        for (String uid : uids) {
+            if (resume(uid)) {
+                count++;
+            }
+        }
+
+        downloadNext();
+        return count;
+    }
+
+    private boolean resume(String uid) {
         FileDownloader downloader = getDownloading(uid);
         if (downloader != null) {
-            if (downloader.getStatus() != DownloadStack.STATUS_LOADING) {
+            FileDownloader source = downloader.getSource();
+            if (source != null) {
+                // still following after all downloads were stopped, they share one transfer
+                return source.getStatus() == DownloadStack.STATUS_LOADING || resume(source.getDownloadUid());
+            }
+
+            if (downloader.getStatus() != DownloadStack.STATUS_LOADING && !follow(downloader)) {
                 downloader.setStatus(DownloadStack.STATUS_WAITING);
+                enqueue(downloader);
             }
-            downloadNext();
             return true;
 //            return downloader.continueDownload(DownloadHelper.this);
         }
@@ -208,25 +279,63 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     public boolean delDownloader(String uid, boolean withFile) {
+        FileDownloader downloader = mDownloadingList.get(uid);
+        boolean flag = remove(uid, withFile);
+        if (flag && downloader != null) {
+            downloadNext();
+        }
+        return flag;
+    }
+
+    /**
+     * Remove downloads in one database transaction and start the waiting ones once.
+     *
+     * @return number of downloads removed
+     */
+    public int delDownloaders(final Collection<String> uids, final boolean withFile) {
+        final int[] count = new int[1];
+        DownloaderDatabase.getInstance(mContext).runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                for (String uid : uids) {
+                    if (remove(uid, withFile)) {
+                        count[0]++;
+                    }
+                }
+            }
+        });
+
+        downloadNext();
+        return count[0];
+    }
+
+    private boolean remove(String uid, boolean withFile) {
         if (uid == null || uid.length() == 0)
             return false;
         FileDownloader downloader = mDownloadingList.get(uid);
         if (downloader != null) {
             mDownloadingList.remove(uid);
+            mWaitingQueue.remove(uid);
+            mRunning.remove(uid);
+            StorageManager.getInstance().release(uid);
+            if (unfollow(downloader)) {
+                // it has no file of its own yet
+                withFile = false;
+            } else if (handOver(downloader)) {
+                // the file is a follower's now
+                withFile = false;
+            }
             downloader.stopAndDelete(withFile);
             onDownloadTaskRemove(this, downloader, 1);
-            downloadNext();
             return true;
         }
 
-        downloader = mDownloadedList.get(uid);
-        if (downloader != null) {
-            mDownloadedList.remove(uid);
-            DownloaderDatabase db = DownloaderDatabase.getInstance(mContext);
-            String path = downloader.getFileDir();
-            String fileName = downloader.getFileName();
+        DownloaderDatabase db = DownloaderDatabase.getInstance(mContext);
+        DownloadRecord record = db.getDownloaded(uid);
+        if (record != null) {
+            String path = record.getFileDir();
+            String fileName = record.getFileName();
             db.deleteDownloaded(path, fileName);
-            db.close();
             if (withFile) {
                 try {
                     File file = new File(path, fileName);
@@ -242,6 +351,15 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     public FileDownloader startNewDownload(String path, String url, String postData, String fileName, String uid) {
+        return startNewDownload(path, url, postData, fileName, uid, DownloadStack.PRIORITY_DEFAULT, null, null);
+    }
+
+    /**
+     * @param digestAlgorithm digest to compute while downloading, or null
+     * @param expectedDigest  hex digest the file must have, or null to compute it only
+     */
+    public FileDownloader startNewDownload(String path, String url, String postData, String fileName, String uid,
+                                           int priority, String digestAlgorithm, String expectedDigest) {
         Log.debug(TAG, "add new download url = " + url + " filename = " + fileName);
         if (url == null || uid == null) {
             Message msg = Message.obtain();
@@ -263,12 +381,105 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
 
         FileDownloader newLoader = getDownloadBaseInfo(mContext, url, postData, uid, "", null);
         newLoader.setFilePathAndName(path, fileName);
+        newLoader.setTaskOptions(priority, null);
+        if (digestAlgorithm != null) {
+            newLoader.setDigest(digestAlgorithm, expectedDigest);
+        }
         addTaskToList(newLoader, true);
         return newLoader;
     }
 
+    /**
+     * Add downloads with one database transaction. Requests without uid or url, with a path that
+     * can't be used or whose uid already exists are skipped.
+     *
+     * @return the downloads added
+     */
+    public List<FileDownloader> startNewDownloads(List<DownloadRequest> requests) {
+        final List<FileDownloader> loaders = new ArrayList<>(requests.size());
+        Set<String> uids = new HashSet<>();
+        for (DownloadRequest request : requests) {
+            String uid = request.getUid();
+            String[] path = DownloadStack.resolvePath(request.getPath());
+            String algorithm = request.getDigestAlgorithm();
+            if (uid == null || request.getUrl() == null || path == null || taskExist(uid) || !uids.add(uid)
+                    || (algorithm != null && !FileDownloader.isDigestSupported(algorithm))) {
+                Log.debug(TAG, "skip download uid = " + uid + " url = " + request.getUrl());
+                continue;
+            }
+
+            FileDownloader loader = getDownloadBaseInfo(mContext, request.getUrl(), request.getPostData(), uid, "", null);
+            loader.setFilePathAndName(path[0], path[1]);
+            loader.setTaskOptions(request.getPriority(), request.getGroup());
+            if (algorithm != null) {
+                loader.setDigest(algorithm, request.getExpectedDigest());
+            }
+            loader.setMirrors(request.getMirrors());
+            loaders.add(loader);
+        }
+
+        if (loaders.isEmpty()) {
+            return loaders;
+        }
+
+        DownloaderDatabase.getInstance(mContext).runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                for (FileDownloader loader : loaders) {
+                    loader.createRecord();
+                }
+            }
+        });
+
+        for (FileDownloader loader : loaders) {
+            queueNewTask(loader);
+        }
+        showAddToast();
+        downloadNext();
+        return loaders;
+    }
+
+    /**
+     * @return uids of the downloads in group
+     */
+    public List<String> getGroupUids(String group) {
+        List<String> uids = new ArrayList<>();
+        for (FileDownloader downloader : mDownloadingList.values()) {
+            if (group.equals(downloader.getGroup())) {
+                uids.add(downloader.getDownloadUid());
+            }
+        }
+
+        return uids;
+    }
+
+    private static final Comparator<FileDownloader> ADDED_ORDER = new Comparator<FileDownloader>() {
+        @Override
+        public int compare(FileDownloader lhs, FileDownloader rhs) {
+            return lhs.getSequence() < rhs.getSequence() ? -1 : (lhs.getSequence() == rhs.getSequence() ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param group null for all downloads
+     * @return one page of the downloads in the order they were added
+     */
+    public List<FileDownloader> getDownloads(String group, int offset, int limit) {
+        List<FileDownloader> downloads = new ArrayList<>(mDownloadingList.size());
+        for (FileDownloader downloader : mDownloadingList.values()) {
+            if (group == null || group.equals(downloader.getGroup())) {
+                downloads.add(downloader);
+            }
+        }
+
+        Collections.sort(downloads, ADDED_ORDER);
+        int from = Math.min(offset, downloads.size());
+        int to = Math.min(from + limit, downloads.size());
+        return new ArrayList<>(downloads.subList(from, to));
+    }
+
     private boolean taskExist(String uid) {
-        return mDownloadingList.get(uid) != null;// || mDownloadedList.get(uid) != null;
+        return mDownloadingList.get(uid) != null;
     }
 
 
@@ -298,7 +509,7 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
 
     static int ramMB = 5 * 1024 * 1024;
 
-    public static boolean isSDCardHasMoreMemery(int size) {
+    public static boolean isSDCardHasMoreMemery(long size) {
         if (size < ramMB) {
             size = ramMB;
         }
@@ -311,20 +522,143 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
 
     private void addTaskToList(FileDownloader loader, boolean showAddToast) {
         loader.createRecord();
-        mDownloadingList.put(loader.getDownloadUid(), loader);
-        onDownloadTaskAdd(this, loader);
+        queueNewTask(loader);
 
         if (showAddToast) {
-            Message msg = Message.obtain();
-            msg.what = TOAST_DOWNLOAD_OTHER;
-            msg.obj = "task add ok";
-            msg.arg1 = R.string.download_task_add_ok;
-            mToastHandler.sendMessage(msg);
+            showAddToast();
         }
 
         downloadNext();
     }
 
+    private void queueNewTask(FileDownloader loader) {
+        mDownloadingList.put(loader.getDownloadUid(), loader);
+        onDownloadTaskAdd(this, loader);
+        if (!follow(loader)) {
+            enqueue(loader);
+        }
+    }
+
+    /**
+     * Let a download which hasn't started get its file from a waiting or running download of the
+     * same request, instead of downloading it again.
+     *
+     * @return true if loader follows another download
+     */
+    private boolean follow(FileDownloader loader) {
+        if (loader.hasTransfer()) {
+            return false;
+        }
+
+        String key = loader.getRequestKey();
+        FileDownloader source = null;
+        for (FileDownloader downloader : mDownloadingList.values()) {
+            int status = downloader.getStatus();
+            if (downloader != loader && downloader.getSource() == null
+                    && (status == DownloadStack.STATUS_WAITING || status == DownloadStack.STATUS_LOADING)
+                    && key.equals(downloader.getRequestKey())) {
+                source = downloader;
+                break;
+            }
+        }
+
+        if (source == null) {
+            return false;
+        }
+
+        synchronized (mFollowers) {
+            List<FileDownloader> followers = mFollowers.get(source.getDownloadUid());
+            if (followers == null) {
+                followers = new ArrayList<>();
+                mFollowers.put(source.getDownloadUid(), followers);
+            }
+            followers.add(loader);
+            loader.follow(source);
+        }
+
+        Log.debug(TAG, loader.getDownloadUid() + " follows " + source.getDownloadUid());
+        if (source.getStatus() == DownloadStack.STATUS_LOADING) {
+            onDownloadTaskStart(this, loader);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if loader doesn't follow another download
+     */
+    private boolean unfollow(FileDownloader loader) {
+        FileDownloader source = loader.getSource();
+        if (source == null) {
+            return false;
+        }
+
+        synchronized (mFollowers) {
+            List<FileDownloader> followers = mFollowers.get(source.getDownloadUid());
+            if (followers != null) {
+                followers.remove(loader);
+                if (followers.isEmpty()) {
+                    mFollowers.remove(source.getDownloadUid());
+                }
+            }
+            loader.unfollow();
+        }
+
+        return true;
+    }
+
+    private List<FileDownloader> getFollowers(String uid) {
+        synchronized (mFollowers) {
+            List<FileDownloader> followers = mFollowers.get(uid);
+            return followers == null ? Collections.<FileDownloader>emptyList() : new ArrayList<>(followers);
+        }
+    }
+
+    private List<FileDownloader> takeFollowers(String uid) {
+        synchronized (mFollowers) {
+            List<FileDownloader> followers = mFollowers.remove(uid);
+            return followers == null ? Collections.<FileDownloader>emptyList() : followers;
+        }
+    }
+
+    /**
+     * A download with followers is paused or removed, the first follower takes over its file
+     * and the other followers.
+     *
+     * @return true if the follower took the file
+     */
+    private boolean handOver(FileDownloader source) {
+        List<FileDownloader> followers = takeFollowers(source.getDownloadUid());
+        if (followers.isEmpty()) {
+            return false;
+        }
+
+        source.stopDownload();
+        FileDownloader heir = followers.remove(0);
+        boolean tookFile = source.handOver(heir);
+        Log.debug(TAG, heir.getDownloadUid() + " takes over " + source.getDownloadUid() + ", file " + tookFile);
+
+        synchronized (mFollowers) {
+            heir.setStatus(DownloadStack.STATUS_WAITING);
+            for (FileDownloader follower : followers) {
+                follower.follow(heir);
+            }
+            if (!followers.isEmpty()) {
+                mFollowers.put(heir.getDownloadUid(), followers);
+            }
+        }
+
+        enqueue(heir);
+        return tookFile;
+    }
+
+    private void showAddToast() {
+        Message msg = Message.obtain();
+        msg.what = TOAST_DOWNLOAD_OTHER;
+        msg.obj = "task add ok";
+        msg.arg1 = R.string.download_task_add_ok;
+        mToastHandler.sendMessage(msg);
+    }
+
     private FileDownloader getDownloadBaseInfo(Context context,
                                                String url, String postData, String uid,
                                                String path, String fileName) {
@@ -340,13 +674,34 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     private int getRunningTaskCnt() {
-        int count = 0;
-        for (FileDownloader loader : mDownloadingList.values()) {
-            if (loader.getStatus() == DownloadStack.STATUS_LOADING) {
-                count++;
-            }
+        return mRunning.size();
+    }
+
+    /**
+     * Queue the download, its space is reserved when it starts.
+     */
+    private void enqueue(FileDownloader loader) {
+        mWaitingQueue.offer(loader.getDownloadUid(), loader.getPriority(), loader.getRemainingSize());
+    }
+
+    /**
+     * Change the priority of a download, a waiting one is moved in the queue at once.
+     *
+     * @return false if there's no such download
+     */
+    public boolean setPriority(String uid, int priority) {
+        FileDownloader downloader = getDownloading(uid);
+        if (downloader == null) {
+            return false;
         }
-        return count;
+
+        downloader.setPriority(priority);
+        mWaitingQueue.reprioritize(uid, priority);
+        return true;
+    }
+
+    public void setShortestRemainingFirst(boolean enabled) {
+        mWaitingQueue.setShortestFirst(enabled);
     }
 
     public ConcurrentMap<String, FileDownloader> getDownloadingList() {
@@ -355,12 +710,33 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     public synchronized void downloadNext() {
-        for (FileDownloader loader : mDownloadingList.values()) {
-            if (loader.getStatus() == DownloadStack.STATUS_WAITING &&
-                    getRunningTaskCnt() < Config.MAX_DOWNLOADS) {
-                Log.debug(TAG, "downloadNext  start....");
-                loader.continueDownload(this);
+        // downloads whose files don't fit, they wait until others give their space back
+        Set<String> skipped = new HashSet<>();
+        while (getRunningTaskCnt() < Config.MAX_DOWNLOADS) {
+            String uid = mWaitingQueue.peek(skipped);
+            if (uid == null) {
+                break;
+            }
+
+            FileDownloader loader = mDownloadingList.get(uid);
+            if (loader == null || loader.getStatus() != DownloadStack.STATUS_WAITING) {
+                mWaitingQueue.remove(uid);
+                continue;
+            }
+
+            if (!StorageManager.getInstance().reserve(loader)) {
+                skipped.add(uid);
+                continue;
+            }
+            mWaitingQueue.remove(uid);
+
+            Log.debug(TAG, "downloadNext  start.... " + uid + " priority " + loader.getPriority());
+            if (loader.continueDownload(this)) {
+                mRunning.add(uid);
                 onDownloadTaskStart(this, loader);
+                for (FileDownloader follower : getFollowers(uid)) {
+                    onDownloadTaskStart(this, follower);
+                }
             }
         }
     }
@@ -380,12 +756,16 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
                 case TOAST_DOWNLOAD_BASE_INFO:
                     Log.debug(TAG, "toast download task base info");
                     onDownloadGetBaseInfo(DownloadHelper.this, (FileDownloader) msg.obj);
+                    for (FileDownloader follower : getFollowers(((FileDownloader) msg.obj).getDownloadUid())) {
+                        onDownloadGetBaseInfo(DownloadHelper.this, follower);
+                    }
                     break;
 
                 case TOAST_DOWNLOAD_FINISH:
                     FileDownloader downer = (FileDownloader) msg.obj;
+                    mRunning.remove(downer.getDownloadUid());
                     mDownloadingList.remove(downer.getDownloadUid());
-                    mDownloadedList.put(downer.getDownloadUid(), downer);
+                    StorageManager.getInstance().release(downer.getDownloadUid());
                     Log.debug(TAG, "toast download task finished, remaining " + mDownloadingList.size() + " tasks");
 
                     onDownloadTaskFinish(DownloadHelper.this, downer);
@@ -395,6 +775,8 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
                 case TOAST_DOWNLOAD_FILE_ERROR:
 //                    Toast.makeText(mContext, R.string.download_task_file_error, Toast.LENGTH_SHORT).show();
                     Log.debug(TAG, "toast download task file error, code: " + msg.arg1);
+                    mRunning.remove(((FileDownloader) msg.obj).getDownloadUid());
+                    StorageManager.getInstance().release(((FileDownloader) msg.obj).getDownloadUid());
                     onDownloadTaskError(DownloadHelper.this, (FileDownloader) msg.obj, msg.arg1);
                     downloadNext();
                     break;
@@ -412,6 +794,9 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
 
                 case TOAST_DOWNLOAD_PROGRESS:
                     onDownloadTaskProgress(DownloadHelper.this, (FileDownloader) msg.obj);
+                    for (FileDownloader follower : getFollowers(((FileDownloader) msg.obj).getDownloadUid())) {
+                        onDownloadTaskProgress(DownloadHelper.this, follower);
+                    }
                     break;
 
                 case TOAST_DOWNLOAD_REMOVE:
@@ -433,13 +818,39 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
     }
 
     @Override
-    public void onDownloadFinish(FileDownloader downloader) {
+    public void onDownloadFinish(final FileDownloader downloader) {
         mToastHandler.obtainMessage(TOAST_DOWNLOAD_FINISH, downloader).sendToTarget();
+
+        final List<FileDownloader> followers = takeFollowers(downloader.getDownloadUid());
+        if (followers.isEmpty()) {
+            return;
+        }
+
+        // the files of the followers may be copied and hashed, keep that off the download looper
+        // and the supervisor threads
+        DownloadExecutors.getFinishExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (FileDownloader follower : followers) {
+                    int errorCode = follower.finishFrom(downloader);
+                    if (errorCode == 0) {
+                        mToastHandler.obtainMessage(TOAST_DOWNLOAD_FINISH, follower).sendToTarget();
+                    } else {
+                        mToastHandler.obtainMessage(TOAST_DOWNLOAD_FILE_ERROR, errorCode, 0, follower).sendToTarget();
+                    }
+                }
+            }
+        });
     }
 
     @Override
     public void onError(FileDownloader downloader, int errorCode) {
         mToastHandler.obtainMessage(TOAST_DOWNLOAD_FILE_ERROR, errorCode, 0, downloader).sendToTarget();
+
+        for (FileDownloader follower : takeFollowers(downloader.getDownloadUid())) {
+            follower.failFollower(errorCode);
+            mToastHandler.obtainMessage(TOAST_DOWNLOAD_FILE_ERROR, errorCode, 0, follower).sendToTarget();
+        }
     }
 
     public final void onDownloadTaskAdd(DownloadHelper downloadHelper,
@@ -490,6 +901,14 @@ public class DownloadHelper implements FileDownloader.IFileDownloaderListener {
         if (mDownloadListener != null)
             mDownloadListener.onDownloadTaskError(downloadHelper, fileDownloader, errorCode);
 
+        if (errorCode == FileDownloader.ERROR_CODE_DIGEST_MISMATCH) {
+            // its segments are reset, it starts over when resumed
+            return;
+        }
+        if (errorCode == FileDownloader.ERROR_CODE_NO_SPACE) {
+            // the task and its file are kept, it goes on where it stopped when resumed
+            return;
+        }
         delDownloader(fileDownloader.getDownloadUid(), true);
     }
 
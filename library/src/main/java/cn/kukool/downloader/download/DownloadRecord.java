@@ -0,0 +1,62 @@
+package cn.kukool.downloader.download;
+
+import java.io.File;
+
+/**
+ * A finished download in the history, read from the database when it's asked for.
+ */
+public class DownloadRecord {
+    private final String mUid;
+    private final String mUrl;
+    private final String mFileDir;
+    private final String mFileName;
+    private final long mFileSize;
+    private final long mDownloadedDate;
+    private final String mDigest;
+
+    public DownloadRecord(String uid, String url, String fileDir, String fileName,
+                          long fileSize, long downloadedDate, String digest) {
+        mUid = uid;
+        mUrl = url;
+        mFileDir = fileDir;
+        mFileName = fileName;
+        mFileSize = fileSize;
+        mDownloadedDate = downloadedDate;
+        mDigest = digest;
+    }
+
+    public String getDownloadUid() {
+        return mUid;
+    }
+
+    public String getDownloadUrl() {
+        return mUrl;
+    }
+
+    public String getFileDir() {
+        return mFileDir;
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public long getDownloadedDate() {
+        return mDownloadedDate;
+    }
+
+    /**
+     * @return "algorithm:hex" digest computed while downloading, or null
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    public File getFile() {
+        return new File(mFileDir, mFileName);
+    }
+}
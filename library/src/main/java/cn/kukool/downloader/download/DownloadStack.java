@@ -1,19 +1,35 @@
 package cn.kukool.downloader.download;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import cn.kukool.downloader.Config;
+import cn.kukool.downloader.aidl.DownloadItem;
+import cn.kukool.downloader.aidl.DownloadRequest;
+import cn.kukool.downloader.aidl.ProgressFrame;
 import cn.kukool.downloader.util.Log;
 import cn.kukool.downloader.util.Util;
 
@@ -33,6 +49,11 @@ public class DownloadStack {
     public static final int STATUS_STOP = 3;
     public static final int STATUS_ERROR = 4;
 
+    /**
+     * priority of a download if not specified, waiting downloads with higher priority start first
+     */
+    public static final int PRIORITY_DEFAULT = 0;
+
     /**
      * timestamp of this intent
      */
@@ -63,6 +84,11 @@ public class DownloadStack {
      */
     public static final String EXTRA_ERROR_CODE = "errorCode";
 
+    /**
+     * "algorithm:hex" digest of the downloaded file, if one was asked for
+     */
+    public static final String EXTRA_DIGEST = "digest";
+
     /**
      * <p>broadcast sent when a task is added.</p>
      * <p/>
@@ -143,8 +169,9 @@ public class DownloadStack {
      * <p/>
      * <p>
      * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_TIMESTAMP},
-     * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_UID} and
-     * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_FILE_PATH}
+     * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_UID},
+     * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_FILE_PATH} and
+     * {@link cn.kukool.downloader.download.DownloadStack#EXTRA_DIGEST}
      * are sent.
      * </p>
      */
@@ -180,10 +207,18 @@ public class DownloadStack {
     private DownloadHelper mHelper;
     private IDownloadListener mDownloadListener;
 
+    /* progress frames, built and sent on the download looper */
+    private final ProgressFrameBuilder mFrameBuilder = new ProgressFrameBuilder(Config.PROGRESS_FRAME_ACK_TIMEOUT);
+    private volatile IProgressFrameListener mFrameListener;
+    private long mFrameInterval = Config.PROGRESS_FRAME_INTERVAL;
+    private Handler mFrameHandler;
+
     @SuppressWarnings("FieldCanBeLocal")
     private ConcurrentHashMap<String, Float> mLastProgress = new ConcurrentHashMap<>();
 
     private static Looper sLooper;
+    private static OkHttpClient sHttpClient;
+    private static BufferPool sBufferPool;
 
     public DownloadStack(Context context) {
         mContext = context;
@@ -299,8 +334,7 @@ public class DownloadStack {
                 if (Config.ENABLE_BROADCAST) {
                     Intent intent = new Intent(BROADCAST_ACTION_PROGRESS);
                     intent.putExtra(EXTRA_TIMESTAMP, System.currentTimeMillis());
-                    float progress = downloader.getFileSize() > 0 ?
-                            downloader.getDownloadedSize() / (float) downloader.getFileSize() * 100.0f : 0.0f;
+                    float progress = downloader.getProgressSnapshot().getProgress() * 100.0f;
                     String uid = downloader.getDownloadUid();
                     if ((!mLastProgress.containsKey(uid)) || (progress - mLastProgress.get(uid) > MIN_SEND_PERCENTAGE)) {
                         intent.putExtra(EXTRA_UID, uid);
@@ -313,7 +347,8 @@ public class DownloadStack {
                     }
                 }
 
-                if (mDownloadListener != null) {
+                // the progress goes in the next frame if there's a frame listener
+                if (mDownloadListener != null && mFrameListener == null) {
                     mDownloadListener.onDownloadTaskProgress(
                             downloader.getDownloadUid(),
                             getDownloadProgress(downloader));
@@ -330,18 +365,21 @@ public class DownloadStack {
                     intent.putExtra(EXTRA_UID, uid);
                     intent.putExtra(EXTRA_FILE_PATH, downloader.getFileDir() +
                             File.separator + downloader.getFileName());
+                    intent.putExtra(EXTRA_DIGEST, downloader.getDigest());
                     Log.debug(TAG, "------> send bcast finish time: " + System.currentTimeMillis() +
                             " uid: " + downloader.getDownloadUid());
                     mContext.sendBroadcast(intent);
                     mLastProgress.remove(uid);
                 }
 
+                mFrameBuilder.onGone(downloader.getDownloadUid(), STATUS_DOWNLOADED);
                 if (mDownloadListener != null) {
                     mDownloadListener.onDownloadTaskFinish(
                             downloader.getDownloadUid(),
                             downloader.getFileDir() +
                                     File.separator +
-                                    downloader.getFileName());
+                                    downloader.getFileName(),
+                            downloader.getDigest());
                 }
             }
 
@@ -385,6 +423,7 @@ public class DownloadStack {
                     mLastProgress.remove(uid);
                 }
 
+                mFrameBuilder.onGone(downloader.getDownloadUid(), STATUS_NOT_EXIST);
                 if (mDownloadListener != null) {
                     mDownloadListener.onDownloadTaskRemove(downloader.getDownloadUid());
                 }
@@ -396,20 +435,96 @@ public class DownloadStack {
             final HandlerThread downloadThread = new HandlerThread("DownloadStack", Thread.MIN_PRIORITY);
             downloadThread.start();
             sLooper = downloadThread.getLooper();
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                registerTrimMemory(context.getApplicationContext());
+            }
         }
+        mFrameHandler = new Handler(sLooper);
     }
 
     public static Looper getLooper() {
         return sLooper;
     }
 
+    /**
+     * The http client shared by all downloads, so connections, dispatcher threads and TLS sessions
+     * to the same host are reused. Connections of one download are limited by its download threads.
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            OkHttpClient client = new OkHttpClient();
+            client.setFollowRedirects(true);
+            client.setFollowSslRedirects(false);
+            client.setRetryOnConnectionFailure(true);
+            client.setConnectTimeout(Config.CONNECT_TIMEOUT, TimeUnit.SECONDS);
+            client.setReadTimeout(Config.READ_TIMEOUT, TimeUnit.SECONDS);
+            client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+            client.setConnectionPool(new ConnectionPool(Config.MAX_IDLE_CONNECTIONS,
+                    TimeUnit.SECONDS.toMillis(Config.KEEP_ALIVE_DURATION)));
+
+            // one probe plus the download threads of every running download
+            int maxRequests = Config.MAX_DOWNLOADS * (Config.MAX_CONNECTIONS + 1);
+            Dispatcher dispatcher = new Dispatcher(DownloadExecutors.getIoExecutor());
+            dispatcher.setMaxRequests(maxRequests);
+            dispatcher.setMaxRequestsPerHost(maxRequests);
+            client.setDispatcher(dispatcher);
+            sHttpClient = client;
+        }
+
+        return sHttpClient;
+    }
+
+    /**
+     * The chunk buffers borrowed by the connections of all downloads.
+     */
+    public static synchronized BufferPool getBufferPool() {
+        if (sBufferPool == null) {
+            sBufferPool = new BufferPool(Config.BUFFER_POOL_CAPACITY);
+        }
+
+        return sBufferPool;
+    }
+
+    /**
+     * Give back the memory the download engine keeps for reuse. It's called by the system when memory
+     * is low on Android 4.0 and later, call it from onLowMemory of your app on older versions.
+     */
+    public static void trimMemory() {
+        BufferPool pool = getBufferPool();
+        pool.trim();
+        Log.debug(TAG, "trimMemory, buffer pool: " + pool);
+    }
+
+    private static void registerTrimMemory(Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // the app only leaving the foreground keeps the buffers of the running downloads
+                if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+                    trimMemory();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
     private float getDownloadProgress(FileDownloader downloader) {
-        float size = downloader.getFileSize();
-        return size > 0 ? downloader.getDownloadedSize() / size : 0.0f;
+        return downloader.getProgressSnapshot().getProgress();
     }
 
     /**
-     * Start download
+     * Start download. If a download of the same url and post data is waiting or running, this one gets
+     * its file when it finishes instead of downloading it again: the file is shared if the paths are the
+     * same, otherwise it's hard linked or copied. Each uid can still be paused or removed by itself.
      *
      * @param uid      unique id of this download
      * @param url      url to download
@@ -422,26 +537,91 @@ public class DownloadStack {
                                  @NonNull String url,
                                  @Nullable String postData,
                                  @Nullable String filePath) {
-        Log.debug(TAG, "startDownload: uid=" + uid + ", url=" + url + ", path=" + filePath);
+        return startDownload(uid, url, postData, filePath, PRIORITY_DEFAULT);
+    }
 
-        String dir;
-        String fileName;
+    /**
+     * Start download with a priority
+     *
+     * @param priority waiting downloads with higher priority start first, the same priority starts in order
+     * @see DownloadStack#startDownload(String, String, String, String)
+     */
+    @CheckResult
+    public boolean startDownload(@NonNull String uid,
+                                 @NonNull String url,
+                                 @Nullable String postData,
+                                 @Nullable String filePath,
+                                 int priority) {
+        Log.debug(TAG, "startDownload: uid=" + uid + ", url=" + url + ", path=" + filePath + ", priority=" + priority);
+
+        String[] path = resolvePath(filePath);
+        if (path == null) {
+            return false;
+        }
+
+        return mHelper.startNewDownload(path[0], url, postData, path[1], uid, priority, null, null) != null;
+    }
+
+    /**
+     * Start download and compute a digest of the file while it's written, the digest is given to
+     * {@link IDownloadListener#onDownloadTaskFinish(String, String, String)}. If it's not the expected one
+     * the download fails with {@link FileDownloader#ERROR_CODE_DIGEST_MISMATCH} and starts over when resumed.
+     *
+     * @param digestAlgorithm MD5, SHA-1 or SHA-256
+     * @param expectedDigest  hex digest the file must have, or null to compute it only
+     * @return false if the algorithm isn't supported or for the reasons of
+     * {@link DownloadStack#startDownload(String, String, String, String)}
+     * @see DownloadStack#startDownload(String, String, String, String, int)
+     */
+    @CheckResult
+    public boolean startDownload(@NonNull String uid,
+                                 @NonNull String url,
+                                 @Nullable String postData,
+                                 @Nullable String filePath,
+                                 int priority,
+                                 @NonNull String digestAlgorithm,
+                                 @Nullable String expectedDigest) {
+        Log.debug(TAG, "startDownload: uid=" + uid + ", url=" + url + ", path=" + filePath
+                + ", digest=" + digestAlgorithm + ":" + expectedDigest);
+
+        String[] path = resolvePath(filePath);
+        if (path == null || !FileDownloader.isDigestSupported(digestAlgorithm)) {
+            return false;
+        }
+
+        return mHelper.startNewDownload(path[0], url, postData, path[1], uid, priority,
+                digestAlgorithm, expectedDigest) != null;
+    }
+
+    /**
+     * Start many downloads with one database transaction.
+     *
+     * @param requests the arguments of {@link DownloadStack#startDownload(String, String, String, String, int)}
+     *                 and a group, a digest and mirror urls for each download
+     * @return number of downloads added, requests are skipped for the same reasons startDownload fails
+     */
+    public int startDownloads(@NonNull List<DownloadRequest> requests) {
+        Log.debug(TAG, "startDownloads: " + requests.size() + " requests");
+        return mHelper.startNewDownloads(requests).size();
+    }
 
+    /**
+     * Split a file path given to startDownload into dir and file name.
+     *
+     * @return {dir, file name}, or null if the path can't be used
+     */
+    static String[] resolvePath(String filePath) {
         if (filePath != null) {
             int index = filePath.lastIndexOf("/");
             if (index == -1)
-                return false;
-            fileName = filePath.substring(index + 1);
-            dir = filePath.substring(0, index);
-        } else {
-            dir = Config.DEFAULT_DOWNLOAD_DIR;
-            fileName = "";
-            if (!Util.isSdcardOK() || !Util.checkSdcard()) {
-                return false;
-            }
+                return null;
+            return new String[] { filePath.substring(0, index), filePath.substring(index + 1) };
         }
 
-        return mHelper.startNewDownload(dir, url, postData, fileName, uid) != null;
+        if (!Util.isSdcardOK() || !Util.checkSdcard()) {
+            return null;
+        }
+        return new String[] { Config.DEFAULT_DOWNLOAD_DIR, "" };
     }
 
     /**
@@ -475,6 +655,139 @@ public class DownloadStack {
         return mHelper.delDownloader(uid, withFile);
     }
 
+    /**
+     * Pause many downloads, the waiting downloads start once all of them are paused.
+     *
+     * @return number of downloads paused
+     */
+    public int pauseDownloads(@NonNull List<String> uids) {
+        return mHelper.stopDownloaders(uids);
+    }
+
+    /**
+     * Resume many downloads, they start by priority once all of them are queued.
+     *
+     * @return number of downloads found
+     */
+    public int resumeDownloads(@NonNull List<String> uids) {
+        return mHelper.continueDownloaders(uids);
+    }
+
+    /**
+     * Remove many downloads, finished or not, in one database transaction.
+     *
+     * @return number of downloads removed
+     */
+    public int removeDownloads(@NonNull List<String> uids, boolean withFile) {
+        return mHelper.delDownloaders(uids, withFile);
+    }
+
+    /**
+     * Pause the unfinished downloads of group.
+     *
+     * @param group group given in {@link DownloadStack#startDownloads(List)}
+     */
+    public int pauseGroup(@NonNull String group) {
+        return mHelper.stopDownloaders(mHelper.getGroupUids(group));
+    }
+
+    public int resumeGroup(@NonNull String group) {
+        return mHelper.continueDownloaders(mHelper.getGroupUids(group));
+    }
+
+    /**
+     * Remove the unfinished downloads of group, finished downloads don't keep their group.
+     */
+    public int removeGroup(@NonNull String group, boolean withFile) {
+        return mHelper.delDownloaders(mHelper.getGroupUids(group), withFile);
+    }
+
+    /**
+     * Change the priority of a download. A waiting download is moved in the queue,
+     * a running one keeps running.
+     *
+     * @param uid      uid you used in {@link DownloadStack#startDownload(String, String, String, String)}
+     * @param priority waiting downloads with higher priority start first
+     * @return false if the download doesn't exist or it has finished
+     */
+    public boolean setDownloadPriority(@NonNull String uid, int priority) {
+        return mHelper.setPriority(uid, priority);
+    }
+
+    /**
+     * Start the waiting download with less bytes left first among downloads of the same priority.
+     * It's {@link Config#SHORTEST_REMAINING_FIRST} by default.
+     */
+    public void setShortestRemainingFirst(boolean enabled) {
+        mHelper.setShortestRemainingFirst(enabled);
+    }
+
+    /**
+     * Limit the total speed of all downloads. Running downloads share it by their weights.
+     *
+     * @param bytesPerSecond max total speed, 0 is unlimited
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        BandwidthLimiter.getInstance().setGlobalRate(bytesPerSecond);
+    }
+
+    /**
+     * Limit the speed of one download.
+     *
+     * @param uid            uid you used in {@link DownloadStack#startDownload(String, String, String, String)}
+     * @param bytesPerSecond max speed of the download, 0 is unlimited
+     * @return false if the download doesn't exist or it has finished
+     */
+    public boolean setDownloadBandwidthLimit(@NonNull String uid, long bytesPerSecond) {
+        FileDownloader downloader = mHelper.getDownloading(uid);
+        if (downloader == null) {
+            return false;
+        }
+
+        downloader.setBandwidthLimit(bytesPerSecond);
+        return true;
+    }
+
+    /**
+     * Set the share of one download in the limit set by {@link DownloadStack#setBandwidthLimit(long)}.
+     *
+     * @param uid    uid you used in {@link DownloadStack#startDownload(String, String, String, String)}
+     * @param weight share relative to other downloads, 1 by default
+     * @return false if the download doesn't exist or it has finished
+     */
+    public boolean setDownloadWeight(@NonNull String uid, int weight) {
+        FileDownloader downloader = mHelper.getDownloading(uid);
+        if (downloader == null) {
+            return false;
+        }
+
+        downloader.setBandwidthWeight(weight);
+        return true;
+    }
+
+    /**
+     * Write the segments of one download through memory mapped windows of its file instead of writing
+     * them, a download without range support always writes. It applies when the download starts or
+     * resumes, it isn't saved.
+     * <p/>
+     * Only a file allocated to its full size is mapped, that is on Android 5.0 and later on a file system
+     * supporting fallocate. Otherwise the file is left sparse and the download silently keeps positional
+     * writes, mapping past the end of a sparse file would grow it while other segments are written.
+     *
+     * @param uid    uid you used in {@link DownloadStack#startDownload(String, String, String, String)}
+     * @param mapped true for the mapped mode, false for positional writes, the default
+     * @return false if the download doesn't exist or it has finished
+     */
+    public boolean setDownloadMappedWrite(@NonNull String uid, boolean mapped) {
+        FileDownloader downloader = mHelper.getDownloading(uid);
+        if (downloader == null) {
+            return false;
+        }
+
+        downloader.setMappedWrite(mapped);
+        return true;
+    }
+
     /**
      * Get download status.
      *
@@ -489,8 +802,7 @@ public class DownloadStack {
             return downloader.getStatus();
         }
 
-        downloader = mHelper.getDownloaded(uid);
-        return downloader != null ? STATUS_DOWNLOADED : STATUS_NOT_EXIST;
+        return mHelper.getDownloaded(uid) != null ? STATUS_DOWNLOADED : STATUS_NOT_EXIST;
     }
 
     private boolean isDownloading(@NonNull FileDownloader downloader) {
@@ -506,14 +818,18 @@ public class DownloadStack {
         Log.assertLog(isDownloading(downloader), TAG, "get info of a not downloading item");
 
         Bundle data = new Bundle();
+        ProgressSnapshot snapshot = downloader.getProgressSnapshot();
 
         data.putString("uid", downloader.getDownloadUid());
         data.putString("url", downloader.getDownloadUrl());
-        data.putInt("filesize", downloader.getFileSize());
+        data.putLong("filesize", snapshot.getFileSize());
         data.putString("filedir", downloader.getFileDir());
         data.putString("filename", downloader.getFileName());
-        data.putInt("downloadedsize", downloader.getDownloadedSize());
-        data.putInt("status", downloader.getStatus());
+        data.putLong("downloadedsize", snapshot.getDownloadedSize());
+        data.putInt("status", snapshot.getStatus());
+        data.putInt("priority", downloader.getPriority());
+        data.putInt("connections", downloader.getConnectionTarget());
+        data.putString("connectionsdecision", downloader.getConnectionDecision());
 
         return data;
     }
@@ -539,28 +855,134 @@ public class DownloadStack {
         return result.toArray(array);
     }
 
+    /**
+     * Get one page of unfinished downloads in the order they were added.
+     *
+     * @param group null for all downloads
+     */
+    public List<DownloadItem> getDownloads(@Nullable String group, int offset, int limit) {
+        List<FileDownloader> downloaders = mHelper.getDownloads(group, Math.max(0, offset), Math.max(0, limit));
+        List<DownloadItem> items = new ArrayList<>(downloaders.size());
+        for (FileDownloader downloader : downloaders) {
+            ProgressSnapshot snapshot = downloader.getProgressSnapshot();
+            items.add(new DownloadItem(downloader.getDownloadUid(), downloader.getDownloadUrl(),
+                    downloader.getFileDir(), downloader.getFileName(),
+                    snapshot.getFileSize(), snapshot.getDownloadedSize(), snapshot.getStatus(),
+                    downloader.getPriority(), downloader.getGroup()));
+        }
+
+        return items;
+    }
+
+    /**
+     * @param group null for all downloads
+     * @return number of unfinished downloads
+     */
+    public int getDownloadCount(@Nullable String group) {
+        return group == null ? mHelper.getDownloadingList().size() : mHelper.getGroupUids(group).size();
+    }
+
+    /**
+     * Get one page of finished downloads, the latest first. Each has uid, url, filesize,
+     * filedir, filename, date and digest.
+     */
+    public Bundle[] getDownloadedList(int offset, int limit) {
+        List<DownloadRecord> records = mHelper.getDownloadedList(Math.max(0, offset), Math.max(0, limit));
+        Bundle[] array = new Bundle[records.size()];
+        for (int i = 0; i < array.length; i++) {
+            DownloadRecord record = records.get(i);
+            Bundle data = new Bundle();
+            data.putString("uid", record.getDownloadUid());
+            data.putString("url", record.getDownloadUrl());
+            data.putLong("filesize", record.getFileSize());
+            data.putString("filedir", record.getFileDir());
+            data.putString("filename", record.getFileName());
+            data.putLong("date", record.getDownloadedDate());
+            data.putString("digest", record.getDigest());
+            array[i] = data;
+        }
+
+        return array;
+    }
+
+    public long getDownloadedCount() {
+        return mHelper.getDownloadedCount();
+    }
+
     public void setDownloadListener(IDownloadListener listener) {
         mDownloadListener = listener;
     }
 
+    private final Runnable mFrameTick = new Runnable() {
+        @Override
+        public void run() {
+            IProgressFrameListener listener = mFrameListener;
+            if (listener == null) {
+                return;
+            }
+
+            ProgressFrame frame = mFrameBuilder.build(mHelper.getDownloadingList(), SystemClock.elapsedRealtime());
+            if (frame != null) {
+                listener.onProgressFrame(frame);
+            }
+            mFrameHandler.postDelayed(this, mFrameInterval);
+        }
+    };
+
+    /**
+     * Get the progress of all downloads in one frame per interval, the download listener doesn't get
+     * progress callbacks while it's set. A frame is only sent when the last one is acked with
+     * {@link #ackProgressFrame(long)}.
+     *
+     * @param listener null to stop the frames
+     * @param interval milliseconds between two frames, 0 for {@link Config#PROGRESS_FRAME_INTERVAL}
+     */
+    public void setProgressFrameListener(final IProgressFrameListener listener, long interval) {
+        final long frameInterval = interval > 0
+                ? Math.max(Config.MIN_PROGRESS_FRAME_INTERVAL, interval) : Config.PROGRESS_FRAME_INTERVAL;
+        mFrameListener = listener;
+        mFrameHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFrameHandler.removeCallbacks(mFrameTick);
+                mFrameBuilder.reset();
+                mFrameInterval = frameInterval;
+                if (listener != null) {
+                    mFrameTick.run();
+                }
+            }
+        });
+    }
+
+    public void ackProgressFrame(long sequence) {
+        mFrameBuilder.ack(sequence);
+    }
+
     public interface IDownloadListener {
         void onDownloadTaskAdd(String uid);
 
         void onDownloadTaskReadd(String uid, float progress);
 
-        void onDownloadTaskStart(String uid, String filepath, int filesize);
+        void onDownloadTaskStart(String uid, String filepath, long filesize);
 
-        void onDownloadTaskBaseInfo(String uid, String filepath, int filesize);
+        void onDownloadTaskBaseInfo(String uid, String filepath, long filesize);
 
         void onDownloadTaskPause(String uid, float progress);
 
         void onDownloadTaskProgress(String uid, float progress);
 
-        void onDownloadTaskFinish(String uid, String filePath);
+        /**
+         * @param digest "algorithm:hex" digest of the file, or null if none was asked for
+         */
+        void onDownloadTaskFinish(String uid, String filePath, String digest);
 
         void onDownloadTaskError(String uid, int errorCode);
 
         void onDownloadTaskRemove(String uid);
     }
 
+    public interface IProgressFrameListener {
+        void onProgressFrame(ProgressFrame frame);
+    }
+
 }
@@ -2,6 +2,7 @@ package cn.kukool.downloader.download;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.squareup.okhttp.Call;
 import com.squareup.okhttp.Callback;
@@ -15,40 +16,62 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import cn.kukool.downloader.Config;
 import cn.kukool.downloader.util.Log;
 
-public class DownloadThread implements Callback {
+public class DownloadThread implements Callback, SegmentWriter.IChunkListener {
     private static final String TAG = "DownloadThread";
 
 
     private RandomAccessFile mSaveFile;
-    private int mBlockSize;
+    private SegmentWriter mWriter;
 
-    private int mThreadId = -1;
-    private int mStartPosition;
-    private int mDownloadLength;
-    private int mTotalSize;
-    private int mThreadDownloadSize = -1;
+    private Segment mSegment;
     private boolean mFinish = false;
     private FileDownloader mFileDownloader;
     private OkHttpClient mHttpClient;
     private DownloadHandler mHandler;
     private Call mCall;
+    private ScheduledFuture<?> mRetry;
     private int mRetryCount;
-    private boolean mRequestStop;
+
+    /* circuit of the host of the last request, guarded by this */
+    private CircuitBreaker mBreaker;
+
+    /* mirror of the running request and when its last bytes came, -1 if not from mirrors */
+    private int mMirror = -1;
+    private long mLastBytesTime;
+    private volatile boolean mRequestStop;
     private IDownloadThreadListener mListener;
 
     public interface IDownloadThreadListener {
         void onFinish(DownloadThread thread);
 
         void onError(DownloadThread thread, int errorCode);
+
+        /**
+         * Called before retrying after a failed request.
+         *
+         * @param code http status code, or -1 if the request failed without a response
+         * @return false to give up the segment and end this thread instead of retrying
+         */
+        boolean onRetry(DownloadThread thread, int code);
+
+        /**
+         * Called when a range request gets another file than the one being downloaded, nothing is written.
+         */
+        void onContentChanged(DownloadThread thread);
     }
 
-    private static final int MSG_WAIT = 0;
+    /* longest sleep of a throttled thread before checking if it's stopped */
+    private static final long MAX_THROTTLE_SLICE = 100;
+
     private static final int MSG_FINISH = 1;
     private static final int MSG_ERROR = 2;
+    private static final int MSG_CONTENT_CHANGED = 3;
 
     static class DownloadHandler extends Handler {
         private WeakReference<DownloadThread> mThread;
@@ -66,58 +89,35 @@ public class DownloadThread implements Callback {
             if (thread == null) return ;
 
             switch (msg.what) {
-                case MSG_WAIT:
-                    thread.download();
-                    break;
-
                 case MSG_FINISH:
                     thread.mListener.onFinish(thread);
-
-                    try {
-                        thread.mSaveFile.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+                    thread.closeFile();
                     break;
 
                 case MSG_ERROR:
                     thread.mListener.onError(thread, msg.arg1);
                     break;
+
+                case MSG_CONTENT_CHANGED:
+                    thread.mListener.onContentChanged(thread);
+                    thread.closeFile();
+                    break;
             }
         }
     }
 
     public DownloadThread(FileDownloader downloader,
                           OkHttpClient httpClient,
-                          File saveFile, int blockSize, int startPos,
-                          int threadId, int totalSize, IDownloadThreadListener listener) {
+                          File saveFile, Segment segment,
+                          IDownloadThreadListener listener) {
         mFileDownloader = downloader;
         mHttpClient = httpClient;
         mHandler = new DownloadHandler(this);
 
-        mBlockSize = blockSize;
-        mStartPosition = startPos;
-        mThreadId = threadId;
-
-        mDownloadLength = startPos - (blockSize * (threadId - 1));
+        mSegment = segment;
         mListener = listener;
-        mTotalSize = totalSize;
-
-        if (blockSize != -1) {
-            //range download
-            if (blockSize * threadId > totalSize) {
-                mThreadDownloadSize = totalSize - startPos;
-            } else {
-                mThreadDownloadSize = blockSize;
-            }
 
-            Log.debug(TAG, "blockSize = " + blockSize +
-                    ", startPosition=" + startPos +
-                    ", threadDownloadSize=" + mThreadDownloadSize +
-                    ", threadId=" + threadId +
-                    ", totalSize=" + totalSize);
-        }
+        Log.debug(TAG, "segment = " + segment);
 
         if (listener == null) {
             throw new NullPointerException("mListener should never be null in download thread");
@@ -125,20 +125,41 @@ public class DownloadThread implements Callback {
 
         try {
             this.mSaveFile = new RandomAccessFile(saveFile, "rw");
+            this.mWriter = new SegmentWriter(mSaveFile.getChannel(), Config.WRITE_CHUNK_SIZE,
+                    downloader.getHasher(), DownloadStack.getBufferPool());
+            // a window mapped past the end grows a sparse file, racing the writes of other segments,
+            // so only a file allocated to its full size is mapped
+            if (downloader.isMappedWrite() && downloader.getFileSize() > 0
+                    && mSaveFile.length() >= downloader.getFileSize()) {
+                // flushed as often as positions are saved
+                this.mWriter.setMapped(Config.MAP_WINDOW_SIZE, Config.CHECKPOINT_BYTES);
+            }
         } catch (FileNotFoundException e) {
             Log.error(TAG, "cannot create save file in download thread", e);
             listener.onError(this, FileDownloader.ERROR_CODE_FILE_NOT_FOUND);
+        } catch (IOException e) {
+            Log.error(TAG, "cannot get length of save file, writing with the channel", e);
         }
 
-        Log.debug(TAG, "new DownloadThread mThreadId: " + threadId + " thread id: " + getThreadId());
+        Log.debug(TAG, "new DownloadThread thread id: " + getThreadId());
     }
 
     public void requestStop() {
         mRequestStop = true;
 
-        mHandler.removeMessages(MSG_WAIT);
         mHandler.removeMessages(MSG_ERROR);
         mHandler.removeMessages(MSG_FINISH);
+        mHandler.removeMessages(MSG_CONTENT_CHANGED);
+
+        synchronized (this) {
+            if (mRetry != null) {
+                mRetry.cancel(false);
+                mRetry = null;
+            }
+            if (mBreaker != null) {
+                mBreaker.cancel(mRetryRunnable);
+            }
+        }
 
         if (mCall != null) {
             mCall.cancel();
@@ -146,22 +167,77 @@ public class DownloadThread implements Callback {
         }
     }
 
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            download();
+        }
+    };
+
+    private void closeFile() {
+        if (mSaveFile == null) {
+            return;
+        }
+
+        try {
+            mSaveFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public int getThreadId() {
-        return mThreadId;
+        return mSegment.getId();
+    }
+
+    public Segment getSegment() {
+        return mSegment;
     }
 
     public void start() {
         Log.assertLog(mCall == null || mCall.isCanceled(), TAG, "Start a download thread when it's already in downloading");
+        if (mWriter == null) {
+            // the file couldn't be opened, the error is reported already
+            return;
+        }
 
         mRetryCount = 0;
-        mDownloadLength = 0;
 
         download();
     }
 
+    /**
+     * Start with a response already received for the beginning of this segment.
+     */
+    public void start(final Response response) {
+        Log.assertLog(mCall == null || mCall.isCanceled(), TAG, "Start a download thread when it's already in downloading");
+        if (mWriter == null) {
+            try {
+                response.body().close();
+            } catch (IOException ignore) {
+            }
+            return;
+        }
+
+        mRetryCount = 0;
+        if (!mSegment.isRange()) {
+            mSegment.rewind();
+        }
+
+        DownloadExecutors.getIoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onResponse(response);
+                } catch (IOException e) {
+                    Log.error(TAG, "failed to write the probe response", e);
+                }
+            }
+        });
+    }
+
     private void download() {
         if (mRetryCount > Config.MAX_THREAD_RETRY) {
-            mDownloadLength = -1;
             mHandler.obtainMessage(MSG_ERROR, FileDownloader.ERROR_CODE_FULL_DOWNLOAD_FAIL, 0).sendToTarget();
             return;
         }
@@ -171,18 +247,31 @@ public class DownloadThread implements Callback {
             return ;
         }
 
-        if (mBlockSize == -1) {
+        if (!mSegment.isRange()) {
             fullDownload();
-        } else if (mDownloadLength < mBlockSize) {
+        } else {
             rangeDownload();
         }
     }
 
-    private void retryOrFail() {
+    /**
+     * @param retryAfter milliseconds the server asked to wait, 0 if none
+     */
+    private void retryOrFail(int code, long retryAfter) {
         if (!mRequestStop) {
+            if (!mListener.onRetry(this, code)) {
+                Log.debug(TAG, "retryOrFail: thread " + getThreadId() + " is retired");
+                closeFile();
+                return;
+            }
+
             ++mRetryCount;
-            Log.debug(TAG, "retryOrFail: " + mRetryCount);
-            mHandler.sendEmptyMessageDelayed(MSG_WAIT, mRetryCount * 2000);
+            long delay = RetryPolicy.getInstance().getDelay(mRetryCount, retryAfter);
+            Log.debug(TAG, "retryOrFail: " + mRetryCount + " in " + delay + "ms");
+            synchronized (this) {
+                mRetry = DownloadExecutors.getRetryExecutor().schedule(
+                        mRetryRunnable, delay, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -190,93 +279,223 @@ public class DownloadThread implements Callback {
         return mFinish;
     }
 
+    /**
+     * Give the mirror of the request back.
+     *
+     * @param failed the mirror failed, a stopped request isn't its fault
+     */
+    private void endRequest(boolean failed) {
+        MirrorSelector mirrors = mFileDownloader.getMirrors();
+        if (mirrors != null && mMirror >= 0) {
+            mirrors.release(mMirror, failed && !mRequestStop, SystemClock.elapsedRealtime());
+        }
+        mMirror = -1;
+    }
+
+    @Override
+    public boolean onChunkWritten(Segment segment, int count) {
+        MirrorSelector mirrors = mFileDownloader.getMirrors();
+        if (mirrors != null && mMirror >= 0) {
+            long now = System.nanoTime();
+            mirrors.onBytes(mMirror, count, now - mLastBytesTime);
+            mLastBytesTime = now;
+        }
+
+        mFileDownloader.append(segment, count);
+        if (segment.isRange()) {
+            mFileDownloader.updateLogFile(segment, count);
+        }
+
+        long wait = mFileDownloader.getBandwidth().reserve(count);
+        if (wait > 0) {
+            throttle(wait);
+        }
+
+        return !mRequestStop;
+    }
+
+    private void throttle(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        try {
+            while (millis > 0 && !mRequestStop) {
+                long slice = Math.min(millis, MAX_THROTTLE_SLICE);
+                Thread.sleep(slice);
+                millis -= slice;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void onFailure(Request request, IOException e) {
         Log.error(TAG, "okhttp callback failure", e);
-        retryOrFail();
+        onHostResult(-1, 0);
+        endRequest(true);
+        retryOrFail(-1, 0);
     }
 
     @Override
     public void onResponse(Response response) throws IOException {
         final ResponseBody body = response.body();
+        if (mWriter == null) {
+            body.close();
+            return;
+        }
+
+        long retryAfter = RetryPolicy.getRetryAfter(response);
+        onHostResult(response.code(), retryAfter);
 
         try {
             if (response.code() / 100 != 2) {
                 body.close();
                 Log.debug(TAG, "onResponse returned non 200 code: " + response.code());
 
-                retryOrFail();
+                endRequest(true);
+                retryOrFail(response.code(), retryAfter);
+            } else if (mMirror > 0 && (!isSameContent(response) || !mFileDownloader.isSameFile(response))) {
+                // the mirror has another file, not the url
+                MirrorSelector mirrors = mFileDownloader.getMirrors();
+                Log.error(TAG, "mirror " + mirrors.getUrl(mMirror) + " serves another file, code: " + response.code());
+                mirrors.disable(mMirror);
+                endRequest(false);
+                download();
+            } else if (mSegment.isRange() && !isSameContent(response)) {
+                endRequest(false);
+                Log.debug(TAG, "content changed, code: " + response.code() + ", range: " +
+                        response.header(FileDownloader.Header.CONTENT_RANGE));
+                mHandler.obtainMessage(MSG_CONTENT_CHANGED).sendToTarget();
             } else {
-                byte[] buffer = new byte[1024];
-                int offset;
-                while ((offset = body.byteStream().read(buffer, 0, 1024)) != -1 && !mRequestStop) {
-                    mSaveFile.write(buffer, 0, offset);
-                    mDownloadLength += offset;
-                    mStartPosition += offset;
-                    mFileDownloader.append(offset);
-                }
-
-                if (mBlockSize != -1) {
-                    mFileDownloader.updateLogFile(this.mThreadId, mBlockSize * (mThreadId - 1) + mDownloadLength);
-                }
+                boolean exhausted = mWriter.write(body.source(), mSegment, this);
 
-                Log.debug(TAG, "offset: " + offset +
-                        ", downloadLength: " + mDownloadLength +
-                        ", threadDownloadSize: " + mThreadDownloadSize);
+                Log.debug(TAG, "exhausted: " + exhausted + ", segment: " + mSegment);
 
-                if (offset == -1 && (mThreadDownloadSize <= 0 || mDownloadLength == mThreadDownloadSize)) {
-                    Log.debug(TAG, "download finish threadId: " + mThreadId);
+                boolean finished = mSegment.isRange() ? mSegment.isFinished() : exhausted;
+                endRequest(!finished);
+                if (finished) {
+                    Log.debug(TAG, "download finish threadId: " + getThreadId());
+                    mSegment.markFinished();
                     mFinish = true;
                     mHandler.obtainMessage(MSG_FINISH).sendToTarget();
                 } else {
-                    retryOrFail();
+                    retryOrFail(-1, 0);
                 }
             }
         } catch (IOException e) {
-            retryOrFail();
+            onHostResult(-1, 0);
+            endRequest(true);
+            retryOrFail(-1, 0);
             throw e;
         } finally {
             body.close();
         }
     }
 
-    private void fullDownload() {
+    /**
+     * Tell the circuit of the host and the retry budget how a request went.
+     *
+     * @param code http status code, or -1 if the request failed without a response
+     */
+    private void onHostResult(int code, long retryAfter) {
+        CircuitBreaker breaker;
+        synchronized (this) {
+            breaker = mBreaker;
+        }
+        if (breaker == null || mRequestStop) {
+            return;
+        }
+
+        if (CircuitBreaker.isHostFailure(code)) {
+            breaker.onFailure(retryAfter);
+        } else {
+            breaker.onSuccess();
+            if (code / 100 == 2) {
+                RetryPolicy.getInstance().onSuccess();
+            }
+        }
+    }
+
+    /**
+     * Send the request unless the circuit of its host is open, then the thread is parked
+     * until the host may be tried again.
+     */
+    private void enqueue(Request request) {
+        String host = request.httpUrl().host();
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        synchronized (this) {
+            mBreaker = breaker;
+        }
+
+        if (!breaker.allowRequest(mRetryRunnable)) {
+            Log.debug(TAG, "thread " + getThreadId() + " parked while the circuit of " + host + " is open");
+            // the mirror is avoided for a while, another one may be picked when the thread wakes
+            endRequest(true);
+            return;
+        }
+
+        mCall = mHttpClient.newCall(request);
+        mCall.enqueue(this);
+    }
+
+    /**
+     * @return false if a range request got the whole file, which is sent when If-Range doesn't match,
+     * or a range of a file with another length
+     */
+    private boolean isSameContent(Response response) {
+        if (response.code() != 206) {
+            return false;
+        }
+
+        String range = response.header(FileDownloader.Header.CONTENT_RANGE);
+        long fileSize = mFileDownloader.getFileSize();
+        int slash = range == null ? -1 : range.indexOf('/');
+        if (slash < 0 || fileSize <= 0) {
+            return true;
+        }
+
         try {
-            mSaveFile.seek(0);
-        } catch (IOException e) {
-            e.printStackTrace();
-            retryOrFail();
-            return ;
+            return Long.parseLong(range.substring(slash + 1).trim()) == fileSize;
+        } catch (NumberFormatException e) {
+            // "*" when the length is unknown
+            return true;
         }
+    }
 
-        mStartPosition = 0;
-        mDownloadLength = 0;
+    private void fullDownload() {
+        mSegment.rewind();
 
         Request.Builder requestBuilder = mFileDownloader.createRequestBuilder();
-        mCall = mHttpClient.newCall(requestBuilder.build());
-        mCall.enqueue(this);
+        enqueue(requestBuilder.build());
     }
 
     private void rangeDownload() {
-        int endPos = Math.min(mTotalSize - 1, mThreadId * mBlockSize - 1);
-
-        if (mStartPosition < endPos) {
-            try {
-                mSaveFile.seek(mStartPosition);
-            } catch (IOException e) {
-                e.printStackTrace();
-                retryOrFail();
-                return ;
+        long startPos = mSegment.getPosition();
+        long endPos = mSegment.getEnd();
+
+        if (startPos <= endPos) {
+            Log.debug(TAG, "startPosition=" + startPos + ", endPos=" + endPos);
+
+            MirrorSelector mirrors = mFileDownloader.getMirrors();
+            Request.Builder requestBuilder;
+            if (mirrors != null) {
+                mMirror = mirrors.acquire(SystemClock.elapsedRealtime());
+                mLastBytesTime = System.nanoTime();
+                requestBuilder = mFileDownloader.createRequestBuilder(mirrors.getUrl(mMirror));
+            } else {
+                requestBuilder = mFileDownloader.createRequestBuilder();
             }
 
-            Log.debug(TAG, "startPosition=" + mStartPosition + ", endPos=" + endPos + ", totalSize=" + mTotalSize);
-
-            Request.Builder requestBuilder = mFileDownloader.createRequestBuilder();
-            requestBuilder.header("Range", "bytes=" + this.mStartPosition + "-" + endPos);
-            mCall = mHttpClient.newCall(requestBuilder.build());
-            mCall.enqueue(this);
+            requestBuilder.header("Range", "bytes=" + startPos + "-" + endPos);
+            String ifRange = mFileDownloader.getIfRange();
+            // validators of other mirrors may differ, their responses are checked instead
+            if (ifRange != null && mMirror <= 0) {
+                // the whole new file is sent instead of the range if it changed
+                requestBuilder.header(FileDownloader.Header.IF_RANGE, ifRange);
+            }
+            enqueue(requestBuilder.build());
         } else {
-            Log.debug(TAG, "range download finish because start position bigger than end position threadId: " + mThreadId);
+            Log.debug(TAG, "range download finish because start position bigger than end position threadId: " + getThreadId());
+            mSegment.markFinished();
             mFinish = true;
             mHandler.obtainMessage(MSG_FINISH).sendToTarget();
         }
@@ -3,23 +3,32 @@ package cn.kukool.downloader.download;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import cn.kukool.downloader.util.ContentValuesFactory;
 
 public class DownloaderDatabase extends SQLiteOpenHelper {
     public final static String DB_NAME = "downloader.db";
-    public final static int DB_VERSION = 4;
+    public final static int DB_VERSION = 11;
 
     public static final String TABLE_DOWNLOADED = "downloaded";
-    public static final String TABLE_DOWNLOADING = "downloading";
+    public static final String TABLE_TASKS = "tasks";
+    public static final String TABLE_SEGMENTS = "segments";
+
+    /* one row per segment with all the task columns repeated, used before version 7 */
+    private static final String TABLE_DOWNLOADING = "downloading";
+
     private static final String[] TABLE_NAMES = {
-            TABLE_DOWNLOADED, TABLE_DOWNLOADING
+            TABLE_DOWNLOADED, TABLE_DOWNLOADING, TABLE_TASKS, TABLE_SEGMENTS
     };
 
     private final static String COLUMN_ID = "_id";
@@ -29,16 +38,32 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
     public final static String COLUMN_FILENAME = "filename";
     public final static String COLUMN_UID = "uid";
 
+    // "algorithm:hex", the expected digest in tasks and the computed one in downloaded
+    public final static String COLUMN_DIGEST = "digest";
+
     //downloaded
     public final static String COLUMN_SIZE = "size";
     public final static String COLUMN_DATE = "date";
 
-    //downloading
+    //tasks
     public final static String COLUMN_FILESIZE = "filesize";
     public final static String COLUMN_BLOCKSIZE = "blocksize";
+    public final static String COLUMN_INFO = "info";
+    public final static String COLUMN_PRIORITY = "priority";
+    public final static String COLUMN_GROUP = "taskgroup";
+    // validators of the file on the server, sent in If-Range when resumed
+    public final static String COLUMN_ETAG = "etag";
+    public final static String COLUMN_LAST_MODIFIED = "lastmodified";
+    // other urls of the same file, one per line
+    public final static String COLUMN_MIRRORS = "mirrors";
+
+    //segments
     public final static String COLUMN_THREADID = "threadid";
     public final static String COLUMN_THREADPOS = "threadpos";
-    public final static String COLUMN_INFO = "info";
+    public final static String COLUMN_THREADEND = "threadend";
+
+    // computed by getDownloadingList: bytes left in the segments of a task, null if unknown
+    public final static String COLUMN_REMAINING = "remaining";
 
     private static DownloaderDatabase instance = null;
 
@@ -54,38 +79,146 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String sql = createDownloadedTable();
-        db.execSQL(sql);
+        db.execSQL(createDownloadedTable());
+        createDownloadedIndexes(db);
 
         // add downloading progress
-        sql = createDownloadingTable();
-        db.execSQL(sql);
+        db.execSQL(createTasksTable());
+        db.execSQL(createSegmentsTable());
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // positions are saved while other threads read, don't let them block each other
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (newVersion != 4) {
+        if (oldVersion < 4) {
             for (String TABLE_NAME : TABLE_NAMES) {
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
             }
 
             onCreate(db);
+            return;
+        }
+
+        if (oldVersion < 5) {
+            upgradeToSegments(db);
+        }
+
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + TABLE_DOWNLOADING + " ADD COLUMN " + COLUMN_PRIORITY + " INTEGER DEFAULT 0");
+        }
+
+        if (oldVersion < 7) {
+            // the new tasks table has the group, digest, validator and mirror columns already
+            upgradeToTasks(db);
+        } else {
+            if (oldVersion < 8) {
+                db.execSQL("ALTER TABLE " + TABLE_TASKS + " ADD COLUMN " + COLUMN_GROUP + " nvarchar(256)");
+            }
+
+            if (oldVersion < 9) {
+                db.execSQL("ALTER TABLE " + TABLE_TASKS + " ADD COLUMN " + COLUMN_DIGEST + " nvarchar(256)");
+            }
+
+            if (oldVersion < 10) {
+                db.execSQL("ALTER TABLE " + TABLE_TASKS + " ADD COLUMN " + COLUMN_ETAG + " nvarchar(256)");
+                db.execSQL("ALTER TABLE " + TABLE_TASKS + " ADD COLUMN " + COLUMN_LAST_MODIFIED + " nvarchar(64)");
+            }
+
+            if (oldVersion < 11) {
+                db.execSQL("ALTER TABLE " + TABLE_TASKS + " ADD COLUMN " + COLUMN_MIRRORS + " TEXT");
+            }
+        }
+
+        if (oldVersion < 9) {
+            db.execSQL("ALTER TABLE " + TABLE_DOWNLOADED + " ADD COLUMN " + COLUMN_DIGEST + " nvarchar(256)");
         }
     }
 
-    private String createDownloadingTable() {
-        return "CREATE TABLE IF NOT EXISTS " + TABLE_DOWNLOADING + "("
+    /**
+     * Version 4 keeps fixed blocks of blocksize keyed by thread id, blocks after the max thread id
+     * have no row. Give every row its end position and add a row for the blocks not started yet.
+     */
+    private void upgradeToSegments(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_DOWNLOADING + " ADD COLUMN " + COLUMN_THREADEND + " INTEGER DEFAULT -1");
+        db.execSQL("UPDATE " + TABLE_DOWNLOADING + " SET " + COLUMN_THREADEND + "="
+                + "MIN(" + COLUMN_BLOCKSIZE + "*" + COLUMN_THREADID + "," + COLUMN_FILESIZE + ")-1"
+                + " WHERE " + COLUMN_BLOCKSIZE + ">0");
+        db.execSQL("INSERT INTO " + TABLE_DOWNLOADING + "("
+                + COLUMN_URL + "," + COLUMN_POSTDATA + "," + COLUMN_DIR + "," + COLUMN_FILENAME + ","
+                + COLUMN_FILESIZE + "," + COLUMN_BLOCKSIZE + "," + COLUMN_THREADID + ","
+                + COLUMN_THREADPOS + "," + COLUMN_THREADEND + "," + COLUMN_UID + "," + COLUMN_INFO + ")"
+                + " SELECT " + COLUMN_URL + "," + COLUMN_POSTDATA + "," + COLUMN_DIR + "," + COLUMN_FILENAME + ","
+                + COLUMN_FILESIZE + "," + COLUMN_BLOCKSIZE + ",MAX(" + COLUMN_THREADID + ")+1,"
+                + "MAX(" + COLUMN_THREADID + ")*" + COLUMN_BLOCKSIZE + "," + COLUMN_FILESIZE + "-1,"
+                + COLUMN_UID + "," + COLUMN_INFO
+                + " FROM " + TABLE_DOWNLOADING + " WHERE " + COLUMN_BLOCKSIZE + ">0"
+                + " GROUP BY " + COLUMN_UID
+                + " HAVING MAX(" + COLUMN_THREADID + ")*" + COLUMN_BLOCKSIZE + "<" + COLUMN_FILESIZE);
+    }
+
+    /**
+     * Version 6 repeats the task columns in every segment row. Move them to one row per task,
+     * keep the positions in the segments table and index what's looked up.
+     */
+    private void upgradeToTasks(SQLiteDatabase db) {
+        db.execSQL(createTasksTable());
+        db.execSQL(createSegmentsTable());
+        createDownloadedIndexes(db);
+
+        String taskColumns = COLUMN_UID + "," + COLUMN_URL + "," + COLUMN_POSTDATA + "," + COLUMN_DIR + ","
+                + COLUMN_FILENAME + "," + COLUMN_FILESIZE + "," + COLUMN_BLOCKSIZE + ","
+                + COLUMN_INFO + "," + COLUMN_PRIORITY;
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_TASKS + "(" + taskColumns + ")"
+                + " SELECT " + taskColumns + " FROM " + TABLE_DOWNLOADING
+                + " WHERE " + COLUMN_UID + " IS NOT NULL"
+                + " GROUP BY " + COLUMN_UID);
+
+        // the same thread id may be saved twice by old versions, the last one wins
+        String segmentColumns = COLUMN_UID + "," + COLUMN_THREADID + "," + COLUMN_THREADPOS + "," + COLUMN_THREADEND;
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_SEGMENTS + "(" + segmentColumns + ")"
+                + " SELECT " + segmentColumns + " FROM " + TABLE_DOWNLOADING
+                + " WHERE " + COLUMN_UID + " IS NOT NULL"
+                + " ORDER BY " + COLUMN_ID);
+
+        db.execSQL("DROP TABLE " + TABLE_DOWNLOADING);
+    }
+
+    private String createTasksTable() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE_TASKS + "("
                 + COLUMN_ID + " INTEGER PRIMARY KEY," //_id
+                + COLUMN_UID + " nvarchar(1024) NOT NULL UNIQUE," // uid
                 + COLUMN_URL + " nvarchar(1024), "  //url
                 + COLUMN_POSTDATA + " nvarchar(1024), " // post data
                 + COLUMN_DIR + " nvarchar(256), " // dir
                 + COLUMN_FILENAME + " nvarchar(256), " //filename
                 + COLUMN_FILESIZE + " INTEGER DEFAULT 0," //filesize
-                + COLUMN_BLOCKSIZE + " INTEGER,"  //blocksize
-                + COLUMN_THREADID + " INTEGER DEFAULT 0," //threadid
-                + COLUMN_THREADPOS + " INTEGER," //threadpos
-                + COLUMN_UID + " nvarchar(1024)," // uid
-                + COLUMN_INFO + " nvarchar(1024)" // info
+                + COLUMN_BLOCKSIZE + " INTEGER DEFAULT 0,"  //blocksize
+                + COLUMN_INFO + " nvarchar(1024)," // info
+                + COLUMN_PRIORITY + " INTEGER DEFAULT 0," // priority
+                + COLUMN_GROUP + " nvarchar(256)," // group
+                + COLUMN_DIGEST + " nvarchar(256)," // expected digest
+                + COLUMN_ETAG + " nvarchar(256)," // etag
+                + COLUMN_LAST_MODIFIED + " nvarchar(64)," // last modified
+                + COLUMN_MIRRORS + " TEXT" // mirrors
+                + ")";
+    }
+
+    private String createSegmentsTable() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE_SEGMENTS + "("
+                + COLUMN_UID + " nvarchar(1024) NOT NULL," // uid of the task
+                + COLUMN_THREADID + " INTEGER NOT NULL," //segment id
+                + COLUMN_THREADPOS + " INTEGER DEFAULT 0," //next byte to download
+                + COLUMN_THREADEND + " INTEGER DEFAULT -1," //last byte
+                + "PRIMARY KEY(" + COLUMN_UID + "," + COLUMN_THREADID + ")"
                 + ")";
     }
 
@@ -99,11 +232,20 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
                 + COLUMN_SIZE + " INTEGER, " // size
                 + COLUMN_DATE + " LONG, " // date
                 + COLUMN_UID + " nvarchar(1024)," // uid
-                + COLUMN_INFO + " nvarchar(1024)" // info
+                + COLUMN_INFO + " nvarchar(1024)," // info
+                + COLUMN_DIGEST + " nvarchar(256)" // digest
                 + ") ";
     }
 
-    public long addNewDownloaded(String url, String postData, String dir, String fileName, int size, long date, String uid, String info) throws SQLException {
+    private void createDownloadedIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_DOWNLOADED + "_" + COLUMN_UID
+                + " ON " + TABLE_DOWNLOADED + "(" + COLUMN_UID + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_DOWNLOADED + "_" + COLUMN_FILENAME
+                + " ON " + TABLE_DOWNLOADED + "(" + COLUMN_DIR + "," + COLUMN_FILENAME + ")");
+    }
+
+    public long addNewDownloaded(String url, String postData, String dir, String fileName, long size, long date, String uid, String info,
+                                 String digest) throws SQLException {
         ContentValues values = new ContentValuesFactory()
                 .put(COLUMN_URL, url)
                 .put(COLUMN_POSTDATA, postData)
@@ -112,29 +254,43 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
                 .put(COLUMN_SIZE, size)
                 .put(COLUMN_DATE, date)
                 .put(COLUMN_UID, uid)
-                .put(COLUMN_INFO, info == null ? "" : info).getValues();
+                .put(COLUMN_INFO, info == null ? "" : info)
+                .put(COLUMN_DIGEST, digest).getValues();
         SQLiteDatabase db = this.getWritableDatabase();
         return db.insertOrThrow(TABLE_DOWNLOADED, null, values);
     }
 
-    public long addNewDownloadingBlock(String url, String postData, String dir, String fileName,
-                                       int fileSize, int block, String uid) {
-        return addNewDownloadingBlock(url, postData, dir, fileName, fileSize, block, 1, uid);
-    }
-
-    public long addNewDownloadingBlock(String url, String postData, String dir, String fileName,
-                                       int fileSize, int block, int threadId, String uid) {
+    /**
+     * Create the record of a new download, its segments are added when the file size is known.
+     */
+    public long addNewDownloadingTask(String url, String postData, String dir, String fileName,
+                                      String uid, int priority, String group, String digest, String mirrors) {
         ContentValues values = new ContentValuesFactory()
+                .put(COLUMN_UID, uid)
                 .put(COLUMN_URL, url)
                 .put(COLUMN_POSTDATA, postData)
                 .put(COLUMN_DIR, dir)
                 .put(COLUMN_FILENAME, fileName)
-                .put(COLUMN_FILESIZE, fileSize)
-                .put(COLUMN_BLOCKSIZE, block)
-                .put(COLUMN_THREADID, threadId)
-                .put(COLUMN_THREADPOS, block * (threadId - 1))
-                .put(COLUMN_UID, uid).getValues();
-        return getWritableDatabase().insertOrThrow(TABLE_DOWNLOADING, null, values);
+                .put(COLUMN_PRIORITY, priority)
+                .put(COLUMN_GROUP, group)
+                .put(COLUMN_DIGEST, digest)
+                .put(COLUMN_MIRRORS, mirrors).getValues();
+        return getWritableDatabase().insertWithOnConflict(TABLE_TASKS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Run task in one transaction, so adding many downloads is one commit instead of one each.
+     */
+    public void runInTransaction(Runnable task) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            task.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public int renameDownloaded(String dir, String fileName, String newFileName) {
@@ -153,91 +309,166 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
                 new String[] { dir, fileName });
     }
 
+    private static final String INSERT_SEGMENT_SQL = "INSERT OR REPLACE INTO " + TABLE_SEGMENTS + "("
+            + COLUMN_UID + "," + COLUMN_THREADID + "," + COLUMN_THREADPOS + "," + COLUMN_THREADEND
+            + ") VALUES (?,?,?,?)";
+
+    /**
+     * Save the file info of a download and replace all its segments in one transaction.
+     */
+    public void addNewDownloadingSegments(String uid, String dir, String fileName,
+                                          long fileSize, long block, List<Segment> segments) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_SEGMENT_SQL);
+        try {
+            updateTask(db, uid, new ContentValuesFactory()
+                    .put(COLUMN_DIR, dir)
+                    .put(COLUMN_FILENAME, fileName)
+                    .put(COLUMN_FILESIZE, fileSize)
+                    .put(COLUMN_BLOCKSIZE, block)
+                    .getValues());
+
+            db.delete(TABLE_SEGMENTS, UID_SELECTION, new String[] { uid });
+            for (Segment segment : segments) {
+                bindSegment(insert, uid, segment);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static void bindSegment(SQLiteStatement statement, String uid, Segment segment) {
+        statement.bindString(1, uid);
+        statement.bindLong(2, segment.getId());
+        statement.bindLong(3, segment.getPosition());
+        statement.bindLong(4, segment.getEnd());
+    }
+
+    private static final String THREAD_SELECTION =
+            DownloaderDatabase.COLUMN_UID + "=? and " +
+                    DownloaderDatabase.COLUMN_THREADID + "=?";
+
+    private static final String UPDATE_END_SQL = "UPDATE " + TABLE_SEGMENTS
+            + " SET " + COLUMN_THREADEND + "=? WHERE " + THREAD_SELECTION;
+
     /**
-     * @param uid download url
-     * @return last download position for all threads
+     * Persist a segment split: the victim gets its new end and the stolen part gets its own record.
      */
-    public Map<Integer, Integer> getData(String uid) {
+    public void splitSegment(String uid, Segment victim, Segment stolen) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement update = db.compileStatement(UPDATE_END_SQL);
+        SQLiteStatement insert = db.compileStatement(INSERT_SEGMENT_SQL);
+        try {
+            update.bindLong(1, victim.getEnd());
+            update.bindString(2, uid);
+            update.bindLong(3, victim.getId());
+            update.execute();
+
+            bindSegment(insert, uid, stolen);
+            insert.executeInsert();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * @param uid download uid
+     * @return saved segments of the download ordered by id
+     */
+    public List<Segment> getSegments(String uid) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(DownloaderDatabase.TABLE_DOWNLOADING,
-                new String[] { DownloaderDatabase.COLUMN_THREADID,
-                        DownloaderDatabase.COLUMN_THREADPOS },
-                DownloaderDatabase.COLUMN_UID + "=?", new String[] { uid },
-                null, null, null, null);
-        Map<Integer, Integer> data = new HashMap<Integer, Integer>();
+        Cursor cursor = db.query(TABLE_SEGMENTS,
+                new String[] { COLUMN_THREADID, COLUMN_THREADPOS, COLUMN_THREADEND },
+                UID_SELECTION, new String[] { uid },
+                null, null, COLUMN_THREADID, null);
+        List<Segment> data = new ArrayList<>(cursor.getCount());
         cursor.moveToFirst();
         while (!cursor.isAfterLast()) {
-            data.put(cursor.getInt(0), cursor.getInt(1));
+            data.add(new Segment(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2)));
             cursor.moveToNext();
         }
         cursor.close();
         return data;
     }
 
-    private void updateByUid(String tableName, String uid, ContentValues values) {
-        getWritableDatabase().update(tableName, values, COLUMN_UID + "=?", new String[] { uid });
+    private static void updateTask(SQLiteDatabase db, String uid, ContentValues values) {
+        db.update(TABLE_TASKS, values, UID_SELECTION, new String[] { uid });
     }
 
-    public void resetFileSize(String uid, int fileSize) {
-        updateByUid(TABLE_DOWNLOADING, uid,
-                new ContentValuesFactory().put(DownloaderDatabase.COLUMN_FILESIZE, fileSize).getValues());
+    public void resetFileSize(String uid, long fileSize) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE_TASKS + " SET " + COLUMN_FILESIZE + "=? WHERE " + UID_SELECTION,
+                new Object[] { fileSize, uid });
+    }
+
+    /**
+     * @param etag         strong etag of the file on the server, or null
+     * @param lastModified Last-Modified of the file on the server, or null
+     */
+    public void resetValidators(String uid, String etag, String lastModified) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE_TASKS + " SET " + COLUMN_ETAG + "=?, "
+                + COLUMN_LAST_MODIFIED + "=? WHERE " + UID_SELECTION, new Object[] { etag, lastModified, uid });
     }
 
     public void resetFileName(String uid, String dir, String fileName) {
-        updateByUid(TABLE_DOWNLOADING, uid, new ContentValuesFactory()
+        updateTask(getWritableDatabase(), uid, new ContentValuesFactory()
                 .put(DownloaderDatabase.COLUMN_DIR, dir)
                 .put(DownloaderDatabase.COLUMN_FILENAME, fileName)
                 .getValues());
     }
 
-    public void resetBlock(String uid, int blocksize) {
-        updateByUid(TABLE_DOWNLOADING, uid, new ContentValuesFactory()
-                .put(DownloaderDatabase.COLUMN_BLOCKSIZE, blocksize)
-                .getValues());
+    public void updatePriority(String uid, int priority) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE_TASKS + " SET " + COLUMN_PRIORITY + "=? WHERE " + UID_SELECTION,
+                new Object[] { priority, uid });
     }
 
-    private static final String THREAD_SELECTION =
-            DownloaderDatabase.COLUMN_UID + "=? and " +
-                    DownloaderDatabase.COLUMN_THREADID + "=?";
-
-    public void resetThreadIdAndStartPos(String uid,
-                                         int oldThreadId,
-                                         int newThreadId,
-                                         int startPos) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValuesFactory()
-                .put(DownloaderDatabase.COLUMN_THREADPOS, startPos)
-                .put(DownloaderDatabase.COLUMN_THREADID, newThreadId)
-                .getValues();
-        db.update(TABLE_DOWNLOADING,
-                values, THREAD_SELECTION,
-                new String[] { uid, String.valueOf(oldThreadId) });
+    public void resetBlock(String uid, long blocksize) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE_TASKS + " SET " + COLUMN_BLOCKSIZE + "=? WHERE " + UID_SELECTION,
+                new Object[] { blocksize, uid });
     }
 
-    public void updatePos(String uid, int threadId, int startPos) {
-        SQLiteDatabase db = getWritableDatabase();
+    private static final String UPDATE_POS_SQL = "UPDATE " + TABLE_SEGMENTS
+            + " SET " + COLUMN_THREADPOS + "=? WHERE " + THREAD_SELECTION;
 
-        ContentValues values = new ContentValuesFactory().put(
-                COLUMN_THREADPOS, startPos).
-                getValues();
-        db.update(TABLE_DOWNLOADING,
-                values,
-                THREAD_SELECTION,
-                new String[] { uid, String.valueOf(threadId) });
+    /**
+     * Save positions of segments from all downloads in one transaction.
+     *
+     * @param positions uid -> thread id -> position
+     */
+    public void updatePositions(Map<String, Map<Integer, Long>> positions) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(UPDATE_POS_SQL);
+
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Map<Integer, Long>> task : positions.entrySet()) {
+                for (Map.Entry<Integer, Long> segment : task.getValue().entrySet()) {
+                    statement.bindLong(1, segment.getValue());
+                    statement.bindString(2, task.getKey());
+                    statement.bindLong(3, segment.getKey());
+                    statement.execute();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
     }
 
     private static final String UID_SELECTION =
             DownloaderDatabase.COLUMN_UID + "=?";
 
     public void updateInfo(String uid, String info) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValuesFactory()
-                .put(DownloaderDatabase.COLUMN_INFO, info)
-                .getValues();
-        db.update(TABLE_DOWNLOADING,
-                values,
-                UID_SELECTION,
-                new String[] { uid });
+        getWritableDatabase().execSQL("UPDATE " + TABLE_TASKS + " SET " + COLUMN_INFO + "=? WHERE " + UID_SELECTION,
+                new Object[] { info, uid });
     }
 
     /**
@@ -247,17 +478,72 @@ public class DownloaderDatabase extends SQLiteOpenHelper {
      */
     public void deleteDownloading(String uid) {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_DOWNLOADING, UID_SELECTION, new String[] { uid });
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_SEGMENTS, UID_SELECTION, new String[] { uid });
+            db.delete(TABLE_TASKS, UID_SELECTION, new String[] { uid });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
+    private static final String DOWNLOADING_LIST_SQL = "SELECT t.*, "
+            + "(SELECT CASE WHEN MIN(s." + COLUMN_THREADEND + ")<0 THEN NULL"
+            + " ELSE SUM(MAX(0, s." + COLUMN_THREADEND + "-s." + COLUMN_THREADPOS + "+1)) END"
+            + " FROM " + TABLE_SEGMENTS + " s WHERE s." + COLUMN_UID + "=t." + COLUMN_UID + ") AS " + COLUMN_REMAINING
+            + " FROM " + TABLE_TASKS + " t ORDER BY t." + COLUMN_ID;
+
+    /**
+     * @return one row of {@link #TABLE_TASKS} per download with {@link #COLUMN_REMAINING},
+     * so segments don't have to be read until the download runs
+     */
     public Cursor getDownloadingList() {
-        return getReadableDatabase().query(TABLE_DOWNLOADING,
-                null, null, null, null, null, null);
+        return getReadableDatabase().rawQuery(DOWNLOADING_LIST_SQL, null);
     }
 
-    public Cursor getDownloadedList() {
-        return getReadableDatabase().query(TABLE_DOWNLOADED,
-                null, null, null, null, null, null);
+    private static final String[] DOWNLOADED_COLUMNS = {
+            COLUMN_UID, COLUMN_URL, COLUMN_DIR, COLUMN_FILENAME, COLUMN_SIZE, COLUMN_DATE, COLUMN_DIGEST
+    };
+
+    private static DownloadRecord readDownloaded(Cursor cursor) {
+        return new DownloadRecord(cursor.getString(0), cursor.getString(1),
+                cursor.getString(2), cursor.getString(3),
+                cursor.getLong(4), cursor.getLong(5), cursor.getString(6));
     }
-}
 
+    /**
+     * @return the latest finished download of uid, or null
+     */
+    public DownloadRecord getDownloaded(String uid) {
+        Cursor cursor = getReadableDatabase().query(TABLE_DOWNLOADED, DOWNLOADED_COLUMNS,
+                UID_SELECTION, new String[] { uid }, null, null, COLUMN_ID + " DESC", "1");
+        try {
+            return cursor.moveToFirst() ? readDownloaded(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return one page of finished downloads, the latest first
+     */
+    public List<DownloadRecord> getDownloadedPage(int offset, int limit) {
+        Cursor cursor = getReadableDatabase().query(TABLE_DOWNLOADED, DOWNLOADED_COLUMNS,
+                null, null, null, null, COLUMN_ID + " DESC", offset + "," + limit);
+        List<DownloadRecord> records = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                records.add(readDownloaded(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return records;
+    }
+
+    public long getDownloadedCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_DOWNLOADED);
+    }
+}
@@ -3,10 +3,10 @@ package cn.kukool.downloader.download;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Handler;
 
 import com.squareup.okhttp.Call;
 import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -16,18 +16,25 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cn.kukool.downloader.Config;
 import cn.kukool.downloader.util.Log;
 import cn.kukool.downloader.util.Util;
 
-public class FileDownloader implements DownloadThread.IDownloadThreadListener {
+public class FileDownloader implements DownloadThread.IDownloadThreadListener,
+        SegmentScheduler.ISegmentSchedulerListener {
     private static final String TAG = "FileDownloader";
     private static final MediaType FORM = MediaType.parse("application/x-www-form-urlencoded; charset=utf-8");
 
@@ -46,7 +53,9 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         public static final String ETAG = "Etag";
         public static final String IF_NONE_MATCH = "If-None-Match";
         public static final String RANGE = "Range";
+        public static final String IF_RANGE = "If-Range";
         public static final String ACCEPTRANGE = "Accept-Ranges";
+        public static final String RETRY_AFTER = "Retry-After";
     }
 
     public final static String LOG_START = "ST";
@@ -67,20 +76,36 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
     // there's error in range downloading, we will try three times for downloading
     // ( this may be sent multiple times for one download, you need to handle it).
     public static final int ERROR_CODE_RANGE_DOWNLOAD_FAIL = 1004;
+    // the digest of the downloaded file isn't the expected one, the download starts over when resumed
+    public static final int ERROR_CODE_DIGEST_MISMATCH = 1005;
+    // the file doesn't fit in the free space left by the other downloads, the download and its file
+    // are kept and it goes on when resumed
+    public static final int ERROR_CODE_NO_SPACE = 1006;
 
-    private int mStatus = DownloadStack.STATUS_WAITING;
+    private volatile int mStatus = DownloadStack.STATUS_WAITING;
     private int mErrorCode = -1;
     private DownloaderDatabase mDownloaderDb;
+    private CheckpointWriter mCheckpointWriter;
 
-    /* downloaded size */
-    private int mDownloadSize = 0;
+    /*
+     * The engine: downloaded size, every download thread adds to the cell of its segment, the bandwidth
+     * taken by the threads, their number adjusted by throughput, guarded by this, and the segments handed
+     * out to them. A download loaded from the database has none of them until it runs, see ensureEngine.
+     */
+    private volatile ProgressCounter mDownloadSize;
+    private BandwidthLimiter.Share mBandwidth;
+    private ConnectionController mConnections;
+    private SegmentScheduler mScheduler;
+
+    /* downloaded size of a download whose engine isn't built yet */
+    private long mLoadedSize;
 
     /**
      * real file size
      * 0: file size not gotten yet
      * -1: error when getting file size
      */
-    private int mFileSize = 0;
+    private volatile long mFileSize = 0;
 
     /* download threads */
     private DownloadThread[] mDownloadThreads;
@@ -88,17 +113,22 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
     /* local target file */
     private File mSaveFile;
 
-    /* last download position for all threads */
-    private Map<Integer, Integer> mThreadStartPosMap =
-            new ConcurrentHashMap<Integer, Integer>();
-
     /**
-     * block size of each thread
+     * initial block size of each thread
      * 0: not get block; -1: single thread download
      */
-    private int mThreadBlockSize;
+    private long mThreadBlockSize;
+
+    private volatile boolean mRequestStop = false;
 
-    private boolean mRequestStop = false;
+    /* false until the saved segments of a resumed download are read */
+    private boolean mSegmentsLoaded = true;
+
+    /* the pending or running start of this download, the pending retry of its probe,
+       and how many times it's been started */
+    private Future<?> mSupervisor;
+    private Future<?> mProbeRetry;
+    private volatile int mStartCount;
     private String mDownloadUid;
     private String mDownloadUrl;
     private String mPostData;
@@ -106,11 +136,49 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
     private String mFileSaveDir;
 
     private boolean mCanRangeDownload;
+    private volatile boolean mMappedWrite;
+
+    /* response of the probe request, the body is the start of the file for the first segment, guarded by this */
+    private Response mProbeResponse;
+
+    /* validators of the file on the server when the download started, a weak etag isn't kept */
+    private String mETag;
+    private String mLastModified;
+    private int mContentRestarts;
+
+    /* other urls of the same file, segments are spread over them and the url, null if none */
+    private String[] mMirrorUrls;
+    private MirrorSelector mMirrors;
+
+    /* downloads with higher priority start first */
+    private volatile int mPriority = DownloadStack.PRIORITY_DEFAULT;
+
+    /* downloads of a group are paused, resumed and removed together, null if none */
+    private String mGroup;
+
+    /* "algorithm:expected hex" of the digest computed while downloading, the hex is empty if not verified */
+    private String mDigestSpec;
+    /* "algorithm:hex" of the finished file */
+    private String mDigest;
+    private volatile StreamingHasher mHasher;
+
+    /* start whose finished file is being hashed, guarded by this */
+    private int mHashingStart;
+
+    /* download of the same request this one gets its file from instead of downloading it, null if none */
+    private volatile FileDownloader mSource;
+
+    /* order the downloads were added or loaded in */
+    private static final AtomicLong sNextSequence = new AtomicLong();
+    private final long mSequence = sNextSequence.getAndIncrement();
     private long mDownloadedDate;
-    private int mMaxThreadId;
 
     private Context mContext;
-    private OkHttpClient mHttpClient;
+
+    /* posts progress on the looper of DownloadStack */
+    private Handler mHandler;
+    private long mLastDownloadSize;
+    private long mLastProgressTime;
 
     private String mDownloadInfo = "";
 
@@ -126,67 +194,59 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         void onError(FileDownloader downloader, int errorCode);
     }
 
-    private void init() {
-        mHttpClient = new OkHttpClient();
-        mHttpClient.setFollowRedirects(true);
-        mHttpClient.setFollowSslRedirects(false);
-        mHttpClient.setRetryOnConnectionFailure(true);
-        mHttpClient.setConnectTimeout(Config.CONNECT_TIMEOUT, TimeUnit.SECONDS);
-        mHttpClient.setReadTimeout(Config.READ_TIMEOUT, TimeUnit.SECONDS);
-        mHttpClient.getDispatcher().setMaxRequests(Config.MAX_THREAD_CNT);
+    /**
+     * Build the engine of the download when it's about to run or first needs it.
+     */
+    private synchronized void ensureEngine() {
+        if (mDownloadSize != null) {
+            return;
+        }
+
+        mBandwidth = BandwidthLimiter.getInstance().newShare();
+        mConnections = new ConnectionController(Config.MAX_THREAD_CNT, Config.MAX_CONNECTIONS);
+        mScheduler = new SegmentScheduler(Config.MIN_SEGMENT_SIZE);
+        mScheduler.setSchedulerListener(this);
+        ProgressCounter downloadSize = new ProgressCounter(Config.MAX_CONNECTIONS);
+        downloadSize.reset(mLoadedSize);
+        // published last, the other parts are set once it's seen
+        mDownloadSize = downloadSize;
+    }
+
+    private long sumDownloadSize() {
+        ProgressCounter downloadSize = mDownloadSize;
+        return downloadSize != null ? downloadSize.sum() : mLoadedSize;
     }
 
     public FileDownloader(Context context,
                           String downloadUrl, String postData, String uid,
                           String fileSaveDir, String fileName,
-                          int fileSize, int blockSize, String info) {
+                          long fileSize, long blockSize, String info, int priority, String group,
+                          String digestSpec, long remaining) {
         mContext = context;
-        init();
 
         mDownloadUrl = downloadUrl;
         mPostData = postData;
         mFileSize = fileSize;
         mDownloadUid = uid;
         mDownloaderDb = DownloaderDatabase.getInstance(context);
+        mCheckpointWriter = CheckpointWriter.getInstance(context);
         mThreadBlockSize = blockSize;
         mCanRangeDownload = (blockSize != -1);
         mFileSaveDir = fileSaveDir;
         mFileName = fileName;
         mDownloadInfo = info == null ? "" : info;
-        ensureFileSaveDir();
+        mPriority = priority;
+        mGroup = group;
+        mDigestSpec = digestSpec;
 
         if (fileName != null && fileName.length() > 0) {
             mSaveFile = new File(fileSaveDir, fileName);
         }
 
-        if (mThreadBlockSize != 0) { //block size has been initialized
-            Map<Integer, Integer> logdata = mDownloaderDb.getData(uid);
-            if (logdata.size() > 0) {
-                mThreadStartPosMap.putAll(logdata);
-            }
-
-            int threadNum = logdata.size();
-            this.mDownloadThreads = new DownloadThread[threadNum];
-            if (threadNum > 0) {
-                Set<Integer> keys = mThreadStartPosMap.keySet();
-                mMaxThreadId = 1;
-                for (int threadId : keys) {
-                    if (threadId > mMaxThreadId)
-                        mMaxThreadId = threadId;
-                    mDownloadSize += this.mThreadStartPosMap.get(threadId) - (this.mThreadBlockSize * (threadId - 1));
-                }
-
-                if (!mCanRangeDownload) {
-                    mDownloadSize = 0; //download from begin
-                } else {
-                    int finishedThreadCnt = mMaxThreadId - keys.size();
-                    if (finishedThreadCnt > 0) {
-                        mDownloadSize += finishedThreadCnt * mThreadBlockSize;
-                    } else if (finishedThreadCnt < 0) {
-                        // log("download record error! ");
-                    }
-                }
-            }
+        if (mThreadBlockSize != 0 && mCanRangeDownload) { //block size has been initialized
+            // segments are read when the download runs, until then only the bytes left are known
+            mSegmentsLoaded = false;
+            mLoadedSize = remaining >= 0 ? Math.max(0, mFileSize - remaining) : 0;
         }
 
         mStatus = DownloadStack.STATUS_STOP;
@@ -196,12 +256,12 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
                           String downloadUrl, String postData, String uid,
                           String fileSaveDir, String fileName) {
         mContext = context;
-        init();
 
         mDownloadUrl = downloadUrl;
         mPostData = postData;
         mDownloadUid = uid;
         mDownloaderDb = DownloaderDatabase.getInstance(context);
+        mCheckpointWriter = CheckpointWriter.getInstance(context);
 
         mFileSaveDir = fileSaveDir;
         mStatus = DownloadStack.STATUS_WAITING;
@@ -234,7 +294,7 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
     }
 
     public void updateDlInfo(String state) {
-        String temp = state + ":" + mDownloadSize + ":" + getCurrentFormatDateTime() + ":" + getCurrentNetwork();
+        String temp = state + ":" + sumDownloadSize() + ":" + getCurrentFormatDateTime() + ":" + getCurrentNetwork();
         Log.debug(TAG, "updateDlInfo dlinfo=" + mDownloadInfo + ",temp=" + temp);
 
         if (mDownloadInfo.length() + temp.length() > 1024) {
@@ -258,7 +318,9 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
 
         mRequestStop = true;
         this.mStatus = DownloadStack.STATUS_STOP;
+        stopThreads();
         updateDlInfo(LOG_DELETE);
+        mCheckpointWriter.forget(mDownloadUid);
         mDownloaderDb.deleteDownloading(mDownloadUid);
         mDownloaderDb.deleteDownloaded(mFileSaveDir, mFileName);
         if (withFile) {
@@ -275,12 +337,14 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
 
         mRequestStop = true;
         mStatus = DownloadStack.STATUS_STOP;
+        stopThreads();
         updateDlInfo(LOG_PAUSE);
         return true;
     }
 
     public void createRecord() {
-        mDownloaderDb.addNewDownloadingBlock(this.mDownloadUrl, this.mPostData, this.mFileSaveDir, this.mFileName, 0, 0, mDownloadUid);
+        mDownloaderDb.addNewDownloadingTask(this.mDownloadUrl, this.mPostData, this.mFileSaveDir, this.mFileName,
+                mDownloadUid, mPriority, mGroup, mDigestSpec, joinMirrors(mMirrorUrls));
     }
 
     public void setFilePathAndName(String path, String name) {
@@ -308,16 +372,18 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         if (mStatus == DownloadStack.STATUS_LOADING)
             return false;
 
+        ensureEngine();
         mFileDownloaderListener = listener;
         mRequestStop = false;
         setStatus(DownloadStack.STATUS_LOADING);
         updateDlInfo(LOG_RESUME);
 
-        new Thread(new Runnable() {
+        final int startCount = ++mStartCount;
+        mSupervisor = DownloadExecutors.getSupervisorExecutor().submit(new Runnable() {
             @Override
             public void run() {
-                //status maybe changed
-                if (mStatus != DownloadStack.STATUS_LOADING) {
+                //status maybe changed, or paused and resumed again while waiting in the queue
+                if (mStatus != DownloadStack.STATUS_LOADING || startCount != mStartCount) {
                     return;
                 }
 
@@ -326,44 +392,129 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
                     return;
                 }
 
+                ensureFileSaveDir();
+                loadSegments();
+                if (isStale(startCount) || !reserveSpace()) {
+                    return;
+                }
+
                 if (mFileSize == 0 || mFileName == null || mFileName.length() == 0) { //not get file size
-                    if (getNetFileBaseInfo()) {
-                        initParams();
-                        initFileServer();
-                        download(mFileDownloaderListener);
-                    } else {
-                        setStatus(DownloadStack.STATUS_ERROR);
-                        updateDlInfo(LOG_ERROR);
-                        mFileDownloaderListener.onError(FileDownloader.this, ERROR_CODE_GET_BASE_INFO_ERROR);
+                    probe(startCount, 0);
+                } else if (mThreadBlockSize == 0 ||
+                        (mCanRangeDownload && mScheduler.isEmpty())) { // not get block
+                    if (isStale(startCount)) {
+                        return;
                     }
-                } else if (mThreadBlockSize == 0) { // not get block
                     initParams();
-                    initFileServer();
+                    initFileServer(startCount);
                     if (!mCanRangeDownload) {
-                        mDownloadSize = 0; // reset download size if can't range download
+                        mDownloadSize.reset(0); // reset download size if can't range download
                     }
 
-                    download(mFileDownloaderListener);
+                    download(startCount);
                 } else {
                     if (!mCanRangeDownload) {
-                        mDownloadSize = 0; // reset download size if can't range download
+                        mDownloadSize.reset(0); // reset download size if can't range download
                     }
 
-                    download(mFileDownloaderListener);
+                    download(startCount);
                 }
+            }
+        });
 
-                if (mStatus != DownloadStack.STATUS_ERROR) {
-                    setStatus(DownloadStack.STATUS_STOP);
+        return true;
+    }
+
+    /**
+     * Run an attempt of the probe on the supervisor thread and start the download if it gets the base info.
+     */
+    private void probe(int startCount, int attempt) {
+        if (!getNetFileBaseInfo(startCount, attempt)) {
+            return;
+        }
+
+        // the probe is kept for a segment only once the file has its space
+        Response probe = takeProbe();
+        // paused, and maybe resumed by a newer start, while probing
+        if (isStale(startCount) || !reserveSpace()) {
+            closeBody(probe);
+            return;
+        }
+        initParams();
+        initFileServer(startCount);
+        keepProbe(startCount, probe);
+        download(startCount);
+    }
+
+    /**
+     * Run the next attempt of the probe on a supervisor thread after delay, the supervisor threads
+     * start other downloads meanwhile.
+     */
+    private synchronized void scheduleProbe(final int startCount, final int attempt, long delay) {
+        if (isStale(startCount)) {
+            return;
+        }
+
+        mProbeRetry = DownloadExecutors.getRetryExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FileDownloader.this) {
+                    if (isStale(startCount)) {
+                        return;
+                    }
+
+                    mSupervisor = DownloadExecutors.getSupervisorExecutor().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            probe(startCount, attempt);
+                        }
+                    });
                 }
             }
-        }, "FileDownloader #" + mDownloadUid).start();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-        return true;
+    /**
+     * @return true if the start of startCount was stopped or replaced by a newer start,
+     * it mustn't touch the segments or the file any more
+     */
+    private boolean isStale(int startCount) {
+        return mRequestStop || mStatus != DownloadStack.STATUS_LOADING || startCount != mStartCount;
+    }
+
+    private synchronized Response takeProbe() {
+        Response probe = mProbeResponse;
+        mProbeResponse = null;
+        return probe;
+    }
+
+    private synchronized void keepProbe(int startCount, Response probe) {
+        if (probe != null && !isStale(startCount)) {
+            mProbeResponse = probe;
+        } else {
+            closeBody(probe);
+        }
+    }
+
+    /**
+     * @return false if the file doesn't fit on the disk, the download fails before downloading anything
+     */
+    private boolean reserveSpace() {
+        if (StorageManager.getInstance().reserve(this)) {
+            return true;
+        }
+
+        onError(null, ERROR_CODE_NO_SPACE);
+        return false;
     }
 
     Request.Builder createRequestBuilder() {
+        return createRequestBuilder(mDownloadUrl);
+    }
+
+    Request.Builder createRequestBuilder(String url) {
         Request.Builder requestBuilder = new Request.Builder();
-        requestBuilder.url(mDownloadUrl);
+        requestBuilder.url(url);
         if (mPostData != null) {
             requestBuilder.post(RequestBody.create(FORM, mPostData));
         }
@@ -372,42 +523,75 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         return requestBuilder;
     }
 
-    public boolean getNetFileBaseInfo() {
-        Request request = createRequestBuilder().header(Header.RANGE, "bytes=0-10").build();
+    /**
+     * Get file name, size and range support. The probe asks for the whole file, its response is kept
+     * and streamed into the first segment by {@link #download(int)} instead of requesting it again.
+     * A failed attempt schedules the next one after backing off, the download fails after the last one.
+     *
+     * @param attempt 0 for the first attempt
+     * @return false if the attempt failed, or the start of startCount was stopped or replaced while probing
+     */
+    private boolean getNetFileBaseInfo(int startCount, int attempt) {
+        Request request = createRequestBuilder().header(Header.RANGE, "bytes=0-").build();
         Log.debug(TAG, "before getNetFileBaseInfo: mRequestStop=" + mRequestStop + ", mFileName =" + mFileName);
 
-        if (mRequestStop) {
+        if (isStale(startCount)) {
             return false;
         }
 
         Call call = null;
         Response response = null;
-        int i;
+        long retryAfter = 0;
 
-        for (i = 0; i < Config.MAX_THREAD_RETRY; ++i) {
-            call = mHttpClient.newCall(request);
+        CircuitBreaker breaker = CircuitBreaker.forHost(request.httpUrl().host());
+        if (breaker.allowRequest(null)) {
+            call = DownloadStack.getHttpClient().newCall(request);
+            int code = -1;
 
             try {
                 response = call.execute();
+                code = response.code();
 
-                if (response.code() / 100 != 2) {
-                    Log.error(TAG, "getNetFileBaseInfo: doRequest failure: " + response.code());
-                } else {
-                    break;
+                if (code / 100 != 2) {
+                    Log.error(TAG, "getNetFileBaseInfo: doRequest failure: " + code);
+                    retryAfter = RetryPolicy.getRetryAfter(response);
                 }
             } catch (IOException e) {
                 Log.error(TAG, "getNetFileBaseInfo: doRequest failure", e);
             }
 
-            call.cancel();
+            if (isStale(startCount)) {
+                closeBody(response);
+                call.cancel();
+                return false;
+            }
 
-            try {
-                Thread.sleep((i + 1) * 2000);
-            } catch (InterruptedException ignore) {
+            if (CircuitBreaker.isHostFailure(code)) {
+                breaker.onFailure(retryAfter);
+            } else {
+                breaker.onSuccess();
             }
+
+            if (code / 100 == 2) {
+                RetryPolicy.getInstance().onSuccess();
+            } else {
+                closeBody(response);
+                response = null;
+                call.cancel();
+            }
+        } else {
+            Log.debug(TAG, "getNetFileBaseInfo: circuit of " + request.httpUrl().host() + " is open");
+            retryAfter = breaker.getRemaining();
         }
 
-        if (i == Config.MAX_THREAD_RETRY || response == null) {
+        if (response == null) {
+            if (attempt + 1 < Config.MAX_THREAD_RETRY) {
+                scheduleProbe(startCount, attempt + 1, RetryPolicy.getInstance().getDelay(attempt + 1, retryAfter));
+            } else if (startCount == mStartCount && !mRequestStop) {
+                setStatus(DownloadStack.STATUS_ERROR);
+                updateDlInfo(LOG_ERROR);
+                mFileDownloaderListener.onError(this, ERROR_CODE_GET_BASE_INFO_ERROR);
+            }
             return false;
         }
 
@@ -427,7 +611,7 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
                 if (headValue != null) {
                     int n = headValue.indexOf('/');
                     if (n >= 0 && n < (headValue.length() - 1)) {
-                        mFileSize = Integer.parseInt(headValue.substring(n + 1));
+                        mFileSize = Long.parseLong(headValue.substring(n + 1));
                     }
                 }
             } else {
@@ -435,7 +619,7 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
                 if (headValue == null || !headValue.contains("chunked")) {
                     headValue = response.header(Header.CONTENT_LENGTH);
                     if (headValue != null) {
-                        mFileSize = Integer.parseInt(headValue);
+                        mFileSize = Long.parseLong(headValue);
                     }
                 }
             }
@@ -447,6 +631,12 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
 
         Log.debug(TAG, "getNetFileBaseInfo: get File Size = " + mFileSize);
 
+        // a weak etag can't be used in If-Range
+        headValue = response.header(Header.ETAG);
+        mETag = headValue != null && !headValue.startsWith("W/") ? headValue : null;
+        mLastModified = response.header(Header.LAST_MODIFIED);
+        mDownloaderDb.resetValidators(mDownloadUid, mETag, mLastModified);
+
         // judge if can range download
         mCanRangeDownload = false;
 
@@ -464,14 +654,44 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
 
         mDownloaderDb.resetFileSize(mDownloadUid, this.mFileSize);
 
-        call.cancel();
+        synchronized (this) {
+            closeProbe();
+            // a range segment checks it got a 206, a server sending 200 with Accept-Ranges is asked again
+            if (!isStale(startCount) && (statusCode == 206 || !mCanRangeDownload)) {
+                mProbeResponse = response;
+            }
+        }
+        if (mProbeResponse != response) {
+            closeBody(response);
+            call.cancel();
+        }
         Log.debug(TAG, "after getNetFileBaseInfo mFileName=" + mFileName);
 
         if (mFileDownloaderListener != null) {
             mFileDownloaderListener.onGetBaseInfo(this);
         }
 
-        return !mRequestStop;
+        return !isStale(startCount);
+    }
+
+    /**
+     * Close the probe response if no segment took it, guarded by this.
+     */
+    private void closeProbe() {
+        closeBody(mProbeResponse);
+        mProbeResponse = null;
+    }
+
+    /**
+     * Close the body of a response not read, so its connection goes back to the pool or is dropped.
+     */
+    private static void closeBody(Response response) {
+        if (response != null) {
+            try {
+                response.body().close();
+            } catch (IOException ignore) {
+            }
+        }
     }
 
     private void setFileName(Response response) {
@@ -577,49 +797,63 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         return name;
     }
 
+    private void loadSegments() {
+        if (mSegmentsLoaded) {
+            return;
+        }
+
+        mSegmentsLoaded = true;
+        List<Segment> segments = mDownloaderDb.getSegments(mDownloadUid);
+        long remaining = 0;
+        for (Segment segment : segments) {
+            if (!segment.isRange()) {
+                // record error! start over
+                mScheduler.clear();
+                remaining = mFileSize;
+                break;
+            }
+
+            remaining += Math.max(0, segment.getRemaining());
+            mScheduler.add(segment);
+        }
+
+        mDownloadSize.reset(Math.max(0, mFileSize - remaining));
+    }
+
     private void initParams() {
+        mScheduler.clear();
+        mDownloadSize.reset(0);
+
         if (!mCanRangeDownload) {
             mThreadBlockSize = -1;
-            mDownloadThreads = new DownloadThread[1];
+            mScheduler.add(new Segment(1, 0, -1));
         } else {
-            int threadCnt = Config.MAX_THREAD_CNT;
-            int blockSize = (mFileSize + threadCnt - 1) / threadCnt;
-
-            if (blockSize > Config.MAX_BLOCK_SIZE) {
-                blockSize = Config.MAX_BLOCK_SIZE;
-            }
+            int threadCnt = getConnectionTarget();
+            long blockSize = (mFileSize + threadCnt - 1) / threadCnt;
 
             mThreadBlockSize = blockSize;
-            mDownloadThreads = new DownloadThread[threadCnt];
-        }
-
-        //init start pos
-        if (this.mThreadStartPosMap.size() != this.mDownloadThreads.length) {
-            this.mThreadStartPosMap.clear();
-            for (int i = 0; i < this.mDownloadThreads.length; i++) {
-                this.mThreadStartPosMap.put(i + 1, this.mThreadBlockSize * i);
+            for (int i = 0; i < threadCnt && blockSize * i < mFileSize; i++) {
+                mScheduler.add(new Segment(i + 1, blockSize * i,
+                        Math.min(blockSize * (i + 1), mFileSize) - 1));
             }
         }
-        mMaxThreadId = mDownloadThreads.length;
     }
 
-    private void initFileServer() {
+    private void initFileServer(int startCount) {
         this.mSaveFile = new File(mFileSaveDir, mFileName);
         RandomAccessFile randOut = null;
         try {
             randOut = new RandomAccessFile(this.mSaveFile, "rw");
-            if (this.mFileSize > 0)
-                randOut.setLength(this.mFileSize);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            setStatus(DownloadStack.STATUS_ERROR);
-            if (mFileDownloaderListener != null)
-                mFileDownloaderListener.onError(this, ERROR_CODE_FILE_NOT_FOUND);
+            // setLength would zero-fill on some file systems, a sparse file grows as segments are written
+            if (this.mFileSize > 0) {
+                if (StorageManager.preallocate(randOut, this.mFileSize)) {
+                    StorageManager.getInstance().onAllocated(mDownloadUid);
+                } else {
+                    Log.debug(TAG, "file of " + mDownloadUid + " is left sparse");
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            setStatus(DownloadStack.STATUS_ERROR);
-            if (mFileDownloaderListener != null)
-                mFileDownloaderListener.onError(this, ERROR_CODE_FILE_OPEN_ERROR);
+            onFileServerError(startCount, e);
         } finally {
             if (randOut != null) {
                 try {
@@ -629,166 +863,769 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
             }
         }
 
-        mDownloaderDb.resetFileName(mDownloadUid, this.mFileSaveDir, this.mFileName);
-        mDownloaderDb.resetBlock(mDownloadUid, this.mThreadBlockSize);
-        for (int i = 0; i < this.mDownloadThreads.length; i++) {
-            mDownloaderDb.addNewDownloadingBlock(this.mDownloadUrl, this.mPostData,
-                    this.mFileSaveDir, this.mFileName, this.mFileSize,
-                    mThreadBlockSize, i + 1, mDownloadUid);
+        if (isStale(startCount)) {
+            return;
         }
+
+        mDownloaderDb.addNewDownloadingSegments(mDownloadUid,
+                this.mFileSaveDir, this.mFileName, this.mFileSize,
+                mThreadBlockSize, mScheduler.getSegments());
     }
 
-    private boolean notEnoughThread;
+    /**
+     * A start stopped meanwhile quits quietly, the file is opened again when the download is resumed.
+     */
+    private void onFileServerError(int startCount, IOException e) {
+        if (isStale(startCount)) {
+            Log.debug(TAG, "file of " + mDownloadUid + " not opened, the start was stopped: " + e);
+            return;
+        }
 
-    private int download(IFileDownloaderListener listener) {
-        notEnoughThread = true;
-        if (this.mCanRangeDownload) {
-            notEnoughThread = mThreadBlockSize * mMaxThreadId < mFileSize;
-            Set<Integer> keys = mThreadStartPosMap.keySet();
-            // copy to local, can NOT direct use keys to find threadid,
-            // because keys maybe changed in function replaceFinishThread
-            Integer[] threadIds = new Integer[keys.size()];
-            threadIds = keys.toArray(threadIds);
-            for (int i = 0; i < mDownloadThreads.length; i++) {
-                int threadId = threadIds[i];
-                int downLength = this.mThreadStartPosMap.get(threadId) -
-                        (this.mThreadBlockSize * (threadId - 1));
-                if (downLength < this.mThreadBlockSize) {
-                    this.mDownloadThreads[i] = new DownloadThread(this, mHttpClient, mSaveFile,
-                            this.mThreadBlockSize, this.mThreadStartPosMap.get(threadId), threadId,
-                            mFileSize, this);
-                    this.mDownloadThreads[i].start();
-                } else if (notEnoughThread) {
-                    notEnoughThread = replaceFinishThread(i, threadId);
-                } else {
-                    mDownloadThreads[i] = null;
-                }
+        if (e instanceof StorageManager.NoSpaceException) {
+            Log.error(TAG, "cannot allocate " + mSaveFile, e);
+            onError(null, ERROR_CODE_NO_SPACE);
+            return;
+        }
+
+        e.printStackTrace();
+        setStatus(DownloadStack.STATUS_ERROR);
+        if (mFileDownloaderListener != null)
+            mFileDownloaderListener.onError(this, e instanceof FileNotFoundException
+                    ? ERROR_CODE_FILE_NOT_FOUND : ERROR_CODE_FILE_OPEN_ERROR);
+    }
+
+    /**
+     * Start the download threads and return, the download is finished by the last finished thread.
+     */
+    private void download(int startCount) {
+        if (mRequestStop || mStatus != DownloadStack.STATUS_LOADING || startCount != mStartCount) {
+            synchronized (this) {
+                closeProbe();
             }
+            return;
+        }
+
+        int threadCnt = 1;
+        if (this.mCanRangeDownload) {
+            threadCnt = getConnectionTarget();
         } else {
-            mDownloadThreads[0] = new DownloadThread(this, mHttpClient, mSaveFile,
-                    mThreadBlockSize, 0, 1, mFileSize, this);
-            mDownloadThreads[0].start();
-            notEnoughThread = false;
+            // can't continue without range, start over
+            mScheduler.clear();
+            mScheduler.add(new Segment(1, 0, -1));
         }
 
-        int lastDownloadSize = mDownloadSize;
-        boolean notFinish = true;
-        while (notFinish && !mRequestStop) {
-            Log.debug(TAG, "in while ==== downloadSpeed=" + (mDownloadSize - lastDownloadSize) + ", downloadSIZE=" + mDownloadSize);
-            lastDownloadSize = mDownloadSize;
+        if (mHandler == null) {
+            mHandler = new Handler(DownloadStack.getLooper());
+        }
+        mLastDownloadSize = mDownloadSize.sum();
+        mLastProgressTime = System.currentTimeMillis();
+        mHandler.postDelayed(mProgressRunnable, Config.PROGRESS_INTERVAL);
+        BandwidthLimiter.getInstance().activate(mBandwidth);
+
+        mHasher = newHasher();
+
+        synchronized (this) {
+            mConnections.restart();
+            // slots for as many threads as the controller may ask for later
+            mDownloadThreads = new DownloadThread[mCanRangeDownload ? Config.MAX_CONNECTIONS : 1];
+            for (int i = 0; i < threadCnt; i++) {
+                startSegment(i);
+            }
+            closeProbe();
+        }
+    }
 
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ignore) {
+    private final Runnable mProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRequestStop || mStatus != DownloadStack.STATUS_LOADING) {
+                return;
             }
 
-            notFinish = false; // assume download has finished
+            long downloadSize = mDownloadSize.sum();
+            long now = System.currentTimeMillis();
+            Log.debug(TAG, "downloadSpeed=" + (downloadSize - mLastDownloadSize) + ", downloadSIZE=" + downloadSize);
+            adjustConnections(downloadSize - mLastDownloadSize, now - mLastProgressTime);
+            // settled once per tick, the download threads only add to their counters
+            StorageManager.getInstance().onWritten(mDownloadUid, downloadSize - mLastDownloadSize);
+            mLastDownloadSize = downloadSize;
+            mLastProgressTime = now;
+
+            if (mFileDownloaderListener != null) {
+                mFileDownloaderListener.onDownloadProgress(FileDownloader.this);
+            }
 
-            for (DownloadThread thread : this.mDownloadThreads) {
-                if (mRequestStop) {
-                    break;
+            mHandler.postDelayed(this, Config.PROGRESS_INTERVAL);
+        }
+    };
+
+    private synchronized void finishDownload() {
+        if (mRequestStop || mStatus != DownloadStack.STATUS_LOADING || mHashingStart == mStartCount) {
+            return;
+        }
+
+        long downloadSize = mDownloadSize.sum();
+        Log.debug(TAG, "onfinish filesize:" + mFileSize + " mDownloadSize:" + downloadSize);
+        mHandler.removeCallbacks(mProgressRunnable);
+        BandwidthLimiter.getInstance().deactivate(mBandwidth);
+
+        if (mFileSize <= 0) {
+            mFileSize = downloadSize;
+        }
+
+        final StreamingHasher hasher = mHasher;
+        mHasher = null;
+        if (hasher == null) {
+            completeDownload();
+            return;
+        }
+
+        // the out of order part of the file is read back, don't hold the download looper meanwhile
+        final int startCount = mStartCount;
+        final long fileSize = mFileSize;
+        mHashingStart = startCount;
+        DownloadExecutors.getFinishExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                String hex = null;
+                try {
+                    hex = Util.toHex(hasher.finish(fileSize));
+                    Log.debug(TAG, "digest of " + mDownloadUid + " read back " + hasher.getReadBack() + " bytes");
+                } catch (IOException e) {
+                    Log.error(TAG, "cannot hash " + mDownloadUid, e);
                 }
 
-                if (thread == null) {
-                    continue;
+                final String digest = hex;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDigest(startCount, digest);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called on the download looper when the digest of the finished file is computed.
+     *
+     * @param hex digest, or null if the file couldn't be read
+     */
+    private synchronized void onDigest(int startCount, String hex) {
+        if (mRequestStop || mStatus != DownloadStack.STATUS_LOADING || startCount != mStartCount) {
+            // stopped while hashing, the file is hashed again when the download finishes next time
+            return;
+        }
+
+        if (hex == null) {
+            onError(null, ERROR_CODE_FILE_OPEN_ERROR);
+            return;
+        }
+
+        if (!setDigestHex(hex)) {
+            // the file is bad, start over when resumed
+            mScheduler.clear();
+            mThreadBlockSize = 0;
+            mDownloadSize.reset(0);
+            mDownloaderDb.resetBlock(mDownloadUid, 0);
+            onError(null, ERROR_CODE_DIGEST_MISMATCH);
+            return;
+        }
+
+        completeDownload();
+    }
+
+    private void completeDownload() {
+        if (mMirrors != null) {
+            Log.debug(TAG, "mirrors of " + mDownloadUid + ": " + mMirrors);
+        }
+
+        updateDlInfo(LOG_SUCCESS);
+        mCheckpointWriter.forget(mDownloadUid);
+        mDownloaderDb.deleteDownloading(mDownloadUid);
+        mDownloadedDate = System.currentTimeMillis();
+        mDownloaderDb.addNewDownloaded(this.mDownloadUrl, this.mPostData,
+                this.mFileSaveDir, this.mFileName, this.mFileSize,
+                this.mDownloadedDate, mDownloadUid, this.mDownloadInfo, mDigest);
+        setStatus(DownloadStack.STATUS_STOP);
+
+        if (mFileDownloaderListener != null) {
+            mFileDownloaderListener.onDownloadProgress(this);
+            mFileDownloaderListener.onDownloadFinish(this);
+        }
+    }
+
+    /**
+     * @return a hasher which knows the bytes already in the file, or null if no digest is wanted
+     */
+    private StreamingHasher newHasher() {
+        if (mDigestSpec == null) {
+            return null;
+        }
+
+        String algorithm = mDigestSpec.substring(0, mDigestSpec.indexOf(':'));
+        StreamingHasher hasher;
+        try {
+            hasher = new StreamingHasher(algorithm, new File(mFileSaveDir, mFileName));
+        } catch (NoSuchAlgorithmException e) {
+            Log.error(TAG, "digest not supported: " + algorithm, e);
+            return null;
+        }
+
+        if (mCanRangeDownload) {
+            // everything out of the segments left is in the file already
+            List<Segment> segments = mScheduler.getSegments();
+            Collections.sort(segments, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment lhs, Segment rhs) {
+                    return lhs.getPosition() < rhs.getPosition() ? -1 : (lhs.getPosition() == rhs.getPosition() ? 0 : 1);
                 }
+            });
 
-                if (!thread.isFinish() || notEnoughThread) {
-                    notFinish = true;
+            long written = 0;
+            for (Segment segment : segments) {
+                if (segment.isFinished()) {
+                    continue;
                 }
+
+                hasher.markWritten(written, segment.getPosition());
+                written = Math.max(written, segment.getEnd() + 1);
             }
+            hasher.markWritten(written, mFileSize);
+        }
+
+        return hasher;
+    }
+
+    /**
+     * @return false if hex isn't the expected digest
+     */
+    private boolean setDigestHex(String hex) {
+        int colon = mDigestSpec.indexOf(':');
+        String expected = mDigestSpec.substring(colon + 1);
+        mDigest = mDigestSpec.substring(0, colon) + ":" + hex;
+        if (expected.length() > 0 && !expected.equals(hex)) {
+            Log.error(TAG, "digest mismatch of " + mDownloadUid + ": " + hex + ", expected " + expected);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the validators saved with a download loaded from the database.
+     */
+    void setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Download the segments from mirrors too, saved by {@link #createRecord()}.
+     *
+     * @param mirrors other urls of the same file, or null
+     */
+    void setMirrors(String[] mirrors) {
+        mMirrorUrls = mirrors == null || mirrors.length == 0 ? null : mirrors;
+        if (mMirrorUrls == null) {
+            mMirrors = null;
+            return;
+        }
+
+        String[] urls = new String[mMirrorUrls.length + 1];
+        urls[0] = mDownloadUrl;
+        System.arraycopy(mMirrorUrls, 0, urls, 1, mMirrorUrls.length);
+        mMirrors = new MirrorSelector(urls);
+    }
+
+    /**
+     * Set the mirrors saved with a download loaded from the database.
+     */
+    void setMirrors(String mirrors) {
+        setMirrors(mirrors == null || mirrors.length() == 0 ? null : mirrors.split("\n"));
+    }
+
+    private static String joinMirrors(String[] mirrors) {
+        if (mirrors == null) {
+            return null;
+        }
 
-            if (listener != null) {
-                listener.onDownloadProgress(this);
+        StringBuilder builder = new StringBuilder();
+        for (String mirror : mirrors) {
+            if (builder.length() > 0) {
+                builder.append('\n');
             }
+            builder.append(mirror);
         }
+        return builder.toString();
+    }
 
-        if (mRequestStop) {
-            Log.debug(TAG, "mRequestStop=" + mRequestStop);
+    /**
+     * @return the mirrors of a download which can range download, or null
+     */
+    MirrorSelector getMirrors() {
+        return mCanRangeDownload ? mMirrors : null;
+    }
 
-            for (DownloadThread thread : this.mDownloadThreads) {
-                if (thread != null) {
-                    thread.requestStop();
-                }
+    /**
+     * @return false if a mirror answered with validators other than the ones of the url,
+     * only validators of the same kind are compared and one match is enough
+     */
+    boolean isSameFile(Response response) {
+        boolean compared = false;
+        String etag = response.header(Header.ETAG);
+        if (mETag != null && etag != null && !etag.startsWith("W/")) {
+            if (mETag.equals(etag)) {
+                return true;
             }
+            compared = true;
+        }
 
-            if (mStatus == DownloadStack.STATUS_ERROR && mFileDownloaderListener != null) {
-                mFileDownloaderListener.onError(this, mErrorCode);
+        String lastModified = response.header(Header.LAST_MODIFIED);
+        if (mLastModified != null && lastModified != null) {
+            if (mLastModified.equals(lastModified)) {
+                return true;
             }
-        } else if (!notFinish) { // finished
-            Log.debug(TAG, "onfinish filesize:" + mFileSize + " mDownloadSize:" + mDownloadSize);
+            compared = true;
+        }
+
+        return !compared;
+    }
 
-            if (mFileSize <= 0) {
-                mFileSize = mDownloadSize;
+    /**
+     * @return value of If-Range for the segments, or null if the server gave no validator
+     */
+    String getIfRange() {
+        return mETag != null ? mETag : mLastModified;
+    }
+
+    /**
+     * @return url and post data, downloads with the same key get the same file
+     */
+    String getRequestKey() {
+        return mPostData == null ? mDownloadUrl : mDownloadUrl + "\n" + mPostData;
+    }
+
+    /**
+     * @return true if this download has its own file started, false if it hasn't started or starts over
+     */
+    boolean hasTransfer() {
+        return mThreadBlockSize != 0;
+    }
+
+    FileDownloader getSource() {
+        return mSource;
+    }
+
+    /**
+     * Get the file from source, which downloads the same request, instead of downloading it.
+     * Status and progress are the ones of source until it finishes.
+     */
+    void follow(FileDownloader source) {
+        mSaveFile = null;
+        mStatus = DownloadStack.STATUS_WAITING;
+        mSource = source;
+    }
+
+    void unfollow() {
+        mSource = null;
+        mStatus = DownloadStack.STATUS_STOP;
+        updateDlInfo(LOG_PAUSE);
+    }
+
+    /**
+     * Give the part of the file downloaded so far to heir, which follows this download, and start this
+     * one over. Called when this download is stopped.
+     *
+     * @return true if heir took the file, false if it has to start over too
+     */
+    synchronized boolean handOver(FileDownloader heir) {
+        heir.mSource = null;
+        if (!mCanRangeDownload || mThreadBlockSize <= 0 || mSaveFile == null || !mSaveFile.exists()) {
+            return false;
+        }
+
+        // this download may be stopped before it ever ran
+        ensureEngine();
+        loadSegments();
+
+        heir.ensureFileSaveDir();
+        File file = new File(heir.mFileSaveDir, heir.mFileName);
+        if (!file.equals(mSaveFile) && (file.exists() || !mSaveFile.renameTo(file))) {
+            Log.error(TAG, "cannot move " + mSaveFile + " to " + file);
+            return false;
+        }
+
+        // positions of the stopped threads may be a little behind, those bytes are downloaded again
+        List<Segment> segments = new ArrayList<>();
+        long remaining = 0;
+        for (Segment segment : mScheduler.getSegments()) {
+            segments.add(new Segment(segment.getId(), segment.getPosition(), segment.getEnd()));
+            remaining += Math.max(0, segment.getRemaining());
+        }
+
+        heir.mSaveFile = file;
+        heir.mFileSize = mFileSize;
+        heir.ensureEngine();
+        heir.mETag = mETag;
+        heir.mLastModified = mLastModified;
+        mDownloaderDb.resetValidators(heir.mDownloadUid, mETag, mLastModified);
+        heir.mCanRangeDownload = true;
+        heir.mThreadBlockSize = mThreadBlockSize;
+        heir.mSegmentsLoaded = true;
+        heir.mScheduler.clear();
+        for (Segment segment : segments) {
+            heir.mScheduler.add(segment);
+        }
+        heir.mDownloadSize.reset(Math.max(0, mFileSize - remaining));
+        mDownloaderDb.addNewDownloadingSegments(heir.mDownloadUid, heir.mFileSaveDir, heir.mFileName,
+                mFileSize, mThreadBlockSize, segments);
+
+        mCheckpointWriter.forget(mDownloadUid);
+        mScheduler.clear();
+        mThreadBlockSize = 0;
+        mDownloadSize.reset(0);
+        mSaveFile = null;
+        mDownloaderDb.addNewDownloadingSegments(mDownloadUid, mFileSaveDir, mFileName, mFileSize, 0,
+                Collections.<Segment>emptyList());
+        return true;
+    }
+
+    /**
+     * Finish this download with the file of source, which downloaded the same request. The file is
+     * shared if the paths are the same, otherwise it's linked or copied.
+     *
+     * @return 0, or the error code if the download failed
+     */
+    int finishFrom(FileDownloader source) {
+        ensureEngine();
+        mSource = null;
+        mFileSize = source.getFileSize();
+        File from = new File(source.getFileDir(), source.getFileName());
+        File file = new File(mFileSaveDir, mFileName);
+        boolean shared = file.equals(from);
+        if (!shared) {
+            ensureFileSaveDir();
+            if (file.exists()) {
+                mFileName = checkRepeatFileName(mFileName, mFileSaveDir);
+                file = new File(mFileSaveDir, mFileName);
             }
 
-            updateDlInfo(LOG_SUCCESS);
-            mDownloaderDb.deleteDownloading(mDownloadUid);
-            mDownloadedDate = System.currentTimeMillis();
-            mDownloaderDb.addNewDownloaded(this.mDownloadUrl, this.mPostData,
-                    this.mFileSaveDir, this.mFileName, this.mFileSize,
-                    this.mDownloadedDate, mDownloadUid, this.mDownloadInfo);
+            if (!Util.linkOrCopy(from, file)) {
+                return failFollower(ERROR_CODE_FILE_OPEN_ERROR);
+            }
+        }
 
-            if (listener != null) {
-                listener.onDownloadFinish(this);
+        if (mDigestSpec != null) {
+            String algorithm = mDigestSpec.substring(0, mDigestSpec.indexOf(':'));
+            String digest = source.getDigest();
+            String hex = null;
+            if (digest != null && digest.startsWith(algorithm + ":")) {
+                hex = digest.substring(algorithm.length() + 1);
+            } else {
+                // source computed another digest or none, read the file once
+                try {
+                    hex = Util.toHex(new StreamingHasher(algorithm, file).finish(mFileSize));
+                } catch (NoSuchAlgorithmException e) {
+                    Log.error(TAG, "digest not supported: " + algorithm, e);
+                } catch (IOException e) {
+                    Log.error(TAG, "cannot hash " + mDownloadUid, e);
+                    return failFollower(ERROR_CODE_FILE_OPEN_ERROR);
+                }
+            }
+
+            if (hex != null && !setDigestHex(hex)) {
+                if (!shared) {
+                    file.delete();
+                }
+                return failFollower(ERROR_CODE_DIGEST_MISMATCH);
             }
         }
 
-        return this.mDownloadSize;
+        mDownloadSize.reset(mFileSize);
+        updateDlInfo(LOG_SUCCESS);
+        mDownloaderDb.deleteDownloading(mDownloadUid);
+        mDownloadedDate = System.currentTimeMillis();
+        mDownloaderDb.addNewDownloaded(this.mDownloadUrl, this.mPostData,
+                this.mFileSaveDir, this.mFileName, this.mFileSize,
+                this.mDownloadedDate, mDownloadUid, this.mDownloadInfo, mDigest);
+        setStatus(DownloadStack.STATUS_STOP);
+        return 0;
     }
 
-    private synchronized boolean replaceFinishThread(int threadPos, int oldThreadId) {
-        mThreadStartPosMap.remove(oldThreadId);
+    /**
+     * Fail a download following one which failed or whose file can't be used.
+     *
+     * @return errorCode
+     */
+    int failFollower(int errorCode) {
+        mSource = null;
+        mErrorCode = errorCode;
+        setStatus(DownloadStack.STATUS_ERROR);
+        updateDlInfo(LOG_ERROR);
+        return errorCode;
+    }
+
+    private synchronized void stopThreads() {
+        Log.debug(TAG, "stopThreads mRequestStop=" + mRequestStop);
+
+        if (mSupervisor != null) {
+            // drops a start still waiting in the queue, a running one quits by itself
+            mSupervisor.cancel(false);
+            mSupervisor = null;
+        }
+        if (mProbeRetry != null) {
+            mProbeRetry.cancel(false);
+            mProbeRetry = null;
+        }
+
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mProgressRunnable);
+        }
+        if (mBandwidth != null) {
+            BandwidthLimiter.getInstance().deactivate(mBandwidth);
+        }
+        closeProbe();
+
+        if (mDownloadThreads == null) {
+            return;
+        }
 
-        int newPos = mThreadBlockSize * mMaxThreadId;
-        int newThreadId = mMaxThreadId + 1;
-        mDownloaderDb.resetThreadIdAndStartPos(mDownloadUid, oldThreadId, newThreadId, newPos);
-        mThreadStartPosMap.put(newThreadId, newPos);
+        for (DownloadThread thread : this.mDownloadThreads) {
+            if (thread != null) {
+                thread.requestStop();
+                mScheduler.release(thread.getSegment());
+            }
+        }
 
-        this.mDownloadThreads[threadPos] = new DownloadThread(this, mHttpClient, mSaveFile,
-                this.mThreadBlockSize, newPos, newThreadId, mFileSize, this);
+        mCheckpointWriter.requestFlush();
+    }
+
+    private synchronized boolean startSegment(int threadPos) {
+        Segment segment = mScheduler.acquire();
+        if (segment == null) {
+            mDownloadThreads[threadPos] = null;
+            return false;
+        }
 
-        mMaxThreadId = newThreadId;
+        mDownloadThreads[threadPos] = new DownloadThread(this, DownloadStack.getHttpClient(), mSaveFile, segment, this);
         if (!mRequestStop) {
-            mDownloadThreads[threadPos].start();
+            if (mProbeResponse != null && segment.getPosition() == 0) {
+                // the probe is the start of the file, no need to request it again
+                mDownloadThreads[threadPos].start(mProbeResponse);
+                mProbeResponse = null;
+            } else {
+                mDownloadThreads[threadPos].start();
+            }
         }
 
-        Log.debug(TAG, "mMaxThreadId:" + mMaxThreadId + " return:" + (mThreadBlockSize * mMaxThreadId < mFileSize));
-        return mThreadBlockSize * mMaxThreadId < mFileSize;
+        Log.debug(TAG, "startSegment " + segment + " at " + threadPos);
+        return true;
     }
 
     private synchronized boolean replaceFinishThread(DownloadThread thread) {
-        Log.debug(TAG, "replaceFinishThread threadId: " + thread.getThreadId() + " thread id =" + thread.getThreadId() + " enter");
+        Log.debug(TAG, "replaceFinishThread threadId: " + thread.getThreadId() + " enter");
 
         for (int i = 0; i < mDownloadThreads.length; i++) {
             if (mDownloadThreads[i] == thread) {
-                return replaceFinishThread(i, thread.getThreadId());
+                // a thread of an earlier start may finish late, its segment belongs to another thread now
+                mScheduler.release(thread.getSegment());
+                if (getRunningCount() > mConnections.getTarget()) {
+                    // the controller wants less connections, don't replace this one
+                    mDownloadThreads[i] = null;
+                    return false;
+                }
+
+                return startSegment(i);
             }
         }
 
-        Log.debug(TAG, "replaceFinishThread threadId: " + thread.getThreadId() + " thread id =" + thread.getThreadId() + " return false");
+        Log.debug(TAG, "replaceFinishThread threadId: " + thread.getThreadId() + " return false");
         return false;
     }
 
+    private int getRunningCount() {
+        int count = 0;
+        for (DownloadThread thread : mDownloadThreads) {
+            if (thread != null) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Feed the throughput to the connection controller and start threads if it wants more.
+     * Threads above the target end when they finish their segment or before they retry.
+     */
+    private synchronized void adjustConnections(long bytes, long elapsed) {
+        if (!mCanRangeDownload || mRequestStop || mDownloadThreads == null) {
+            return;
+        }
+
+        if (mConnections.onSample(bytes, elapsed)) {
+            Log.debug(TAG, "connections of " + mDownloadUid + ": " + mConnections);
+        }
+
+        int running = getRunningCount();
+        for (int i = 0; i < mDownloadThreads.length && running < mConnections.getTarget(); i++) {
+            if (mDownloadThreads[i] == null) {
+                if (!startSegment(i)) {
+                    break;
+                }
+                running++;
+            }
+        }
+    }
+
+    public synchronized int getConnectionTarget() {
+        return mConnections != null ? mConnections.getTarget() : Config.MAX_THREAD_CNT;
+    }
+
+    /**
+     * @return the last decision of the connection controller, one of ConnectionController.DECISION_*
+     */
+    public synchronized String getConnectionDecision() {
+        return mConnections != null ? mConnections.getDecision() : ConnectionController.DECISION_START;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(int priority) {
+        mPriority = priority;
+        mDownloaderDb.updatePriority(mDownloadUid, priority);
+    }
+
+    /**
+     * Set priority and group of a new download, they're saved by {@link #createRecord()}.
+     */
+    void setTaskOptions(int priority, String group) {
+        mPriority = priority;
+        mGroup = group;
+    }
+
+    /**
+     * Compute a digest of the file while it's downloaded and compare it with expected when finished,
+     * saved by {@link #createRecord()}.
+     *
+     * @param expected hex digest, or null to compute it only
+     */
+    void setDigest(String algorithm, String expected) {
+        mDigestSpec = algorithm + ":" + (expected == null ? "" : expected.toLowerCase(Locale.US));
+    }
+
+    public static boolean isDigestSupported(String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return "algorithm:hex" digest of the finished file, or null if it's not computed
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    StreamingHasher getHasher() {
+        return mHasher;
+    }
+
+    public String getGroup() {
+        return mGroup;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return bytes left to download, or -1 if the file size isn't known yet
+     */
+    public long getRemainingSize() {
+        FileDownloader source = mSource;
+        if (source != null) {
+            return source.getRemainingSize();
+        }
+
+        long fileSize = mFileSize;
+        return fileSize > 0 ? Math.max(0, fileSize - sumDownloadSize()) : -1;
+    }
+
     public void setStatus(int status) {
         mStatus = status;
     }
 
     public int getStatus() {
-        return mStatus;
+        FileDownloader source = mSource;
+        return source != null ? source.getStatus() : mStatus;
+    }
+
+    public long getFileSize() {
+        FileDownloader source = mSource;
+        return source != null ? source.getFileSize() : mFileSize;
+    }
+
+    public long getDownloadedSize() {
+        FileDownloader source = mSource;
+        return source != null ? source.getDownloadedSize() : sumDownloadSize();
     }
 
-    public int getFileSize() {
-        return mFileSize;
+    /**
+     * @return downloaded size, file size and status read together
+     */
+    public ProgressSnapshot getProgressSnapshot() {
+        FileDownloader source = mSource;
+        if (source != null) {
+            return source.getProgressSnapshot();
+        }
+
+        int status = mStatus;
+        long fileSize = mFileSize;
+        return new ProgressSnapshot(sumDownloadSize(), fileSize, status);
+    }
+
+    public boolean isMappedWrite() {
+        return mMappedWrite;
+    }
 
+    /**
+     * @param mapped write range segments through mapped windows of the file instead of positional
+     *               writes, from the next start of the download threads, a file left sparse is
+     *               always written with positional writes
+     */
+    public void setMappedWrite(boolean mapped) {
+        mMappedWrite = mapped;
     }
 
-    public int getDownloadedSize() {
-        return mDownloadSize;
+    BandwidthLimiter.Share getBandwidth() {
+        return mBandwidth;
     }
 
-    protected synchronized void append(int size) {
-        mDownloadSize += size;
+    /**
+     * @param bytesPerSecond max speed of this download, 0 is unlimited
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        ensureEngine();
+        BandwidthLimiter.getInstance().setCap(mBandwidth, bytesPerSecond);
+    }
+
+    /**
+     * @param weight share of the global bandwidth limit relative to other downloads, 1 by default
+     */
+    public void setBandwidthWeight(int weight) {
+        ensureEngine();
+        BandwidthLimiter.getInstance().setWeight(mBandwidth, weight);
+    }
+
+    protected void append(Segment segment, int size) {
+        mDownloadSize.add(segment.getId(), size);
     }
 
     public String getFileDir() {
@@ -807,13 +1644,8 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
         return mDownloadedDate;
     }
 
-    public void setDownloadedDate(long downloadedDate) {
-        mDownloadedDate = downloadedDate;
-    }
-
-    protected synchronized void updateLogFile(int threadId, int pos) {
-        mThreadStartPosMap.put(threadId, pos);
-        mDownloaderDb.updatePos(mDownloadUid, threadId, pos);
+    protected void updateLogFile(Segment segment, int written) {
+        mCheckpointWriter.mark(mDownloadUid, segment, written);
     }
 
     public void getFastName() {
@@ -879,19 +1711,94 @@ public class FileDownloader implements DownloadThread.IDownloadThreadListener {
 
     @Override
     public void onError(DownloadThread thread, int errorCode) {
+        if (mStatus == DownloadStack.STATUS_ERROR) {
+            return;
+        }
+
         mRequestStop = true;
         setStatus(DownloadStack.STATUS_ERROR);
         mErrorCode = errorCode;
+        stopThreads();
         updateDlInfo(LOG_ERROR);
+
+        if (mFileDownloaderListener != null) {
+            mFileDownloaderListener.onError(this, mErrorCode);
+        }
     }
 
     @Override
     public void onFinish(DownloadThread thread) {
-        Log.debug(TAG, "download thread finish threadId: " + thread.getThreadId() + " thread id: " + thread.getThreadId());
+        Log.debug(TAG, "download thread finish threadId: " + thread.getThreadId());
+
+        if (!mRequestStop) {
+            replaceFinishThread(thread);
+        }
+
+        if (mScheduler.isFinished()) {
+            finishDownload();
+        }
+    }
+
+    @Override
+    public synchronized boolean onRetry(DownloadThread thread, int code) {
+        if (mCanRangeDownload && (code == 429 || code / 100 == 5)) {
+            mConnections.onServerError(code);
+            Log.debug(TAG, "connections of " + mDownloadUid + " after " + code + ": " + mConnections);
+        }
 
-        if (notEnoughThread) {
-            notEnoughThread = replaceFinishThread(thread);
+        if (mDownloadThreads == null || getRunningCount() <= mConnections.getTarget()) {
+            return true;
         }
+
+        for (int i = 0; i < mDownloadThreads.length; i++) {
+            if (mDownloadThreads[i] == thread) {
+                // hand the segment to the threads left
+                mDownloadThreads[i] = null;
+                mScheduler.release(thread.getSegment());
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void onContentChanged(DownloadThread thread) {
+        if (mRequestStop || mStatus != DownloadStack.STATUS_LOADING) {
+            return;
+        }
+
+        Log.error(TAG, "file of " + mDownloadUid + " changed on the server, start over");
+        mRequestStop = true;
+        stopThreads();
+        mCheckpointWriter.forget(mDownloadUid);
+
+        // the bytes downloaded belong to another file, get the new base info and download all of it
+        mScheduler.clear();
+        mThreadBlockSize = 0;
+        mFileSize = 0;
+        mDownloadSize.reset(0);
+        mHasher = null;
+        mETag = null;
+        mLastModified = null;
+        mDownloaderDb.resetBlock(mDownloadUid, 0);
+        mDownloaderDb.resetFileSize(mDownloadUid, 0);
+        mDownloaderDb.resetValidators(mDownloadUid, null, null);
+
+        if (++mContentRestarts > Config.MAX_CONTENT_RESTARTS) {
+            // the server keeps answering ranges with another file
+            onError(thread, ERROR_CODE_RANGE_DOWNLOAD_FAIL);
+            return;
+        }
+
+        setStatus(DownloadStack.STATUS_STOP);
+        continueDownload(mFileDownloaderListener);
+    }
+
+    @Override
+    public void onSegmentSplit(Segment victim, Segment stolen) {
+        Log.debug(TAG, "onSegmentSplit " + victim + " -> " + stolen);
+        mDownloaderDb.splitSegment(mDownloadUid, victim, stolen);
     }
 
     @Override
@@ -0,0 +1,120 @@
+package cn.kukool.downloader.download;
+
+import java.util.Locale;
+
+/**
+ * Picks the mirror of each segment request of a download whose file is on several urls.
+ * <p/>
+ * Mirrors not measured yet are tried first, then a request goes to the mirror with the best
+ * throughput per running request, lowered by its error rate. A failing mirror isn't picked for
+ * a while, a mirror serving another file isn't picked again. Mirror 0 is the url of the download,
+ * it's used when no other mirror can be.
+ */
+public class MirrorSelector {
+    private static final double ALPHA = 0.3;
+    private static final long BACKOFF = 2000;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final String[] mUrls;
+
+    /* bytes per second and rate of failed requests, moving averages */
+    private final double[] mRates;
+    private final double[] mErrorRates;
+
+    private final int[] mActive;
+    private final int[] mFailures;
+    private final long[] mRetryAfter;
+    private final boolean[] mDisabled;
+
+    /**
+     * @param urls the url of the download first
+     */
+    public MirrorSelector(String[] urls) {
+        mUrls = urls;
+        mRates = new double[urls.length];
+        mErrorRates = new double[urls.length];
+        mActive = new int[urls.length];
+        mFailures = new int[urls.length];
+        mRetryAfter = new long[urls.length];
+        mDisabled = new boolean[urls.length];
+    }
+
+    public int size() {
+        return mUrls.length;
+    }
+
+    public String getUrl(int mirror) {
+        return mUrls[mirror];
+    }
+
+    /**
+     * Pick the mirror of a new request, {@link #release(int, boolean, long)} it when the request ends.
+     *
+     * @param now milliseconds of a monotonic clock
+     */
+    public synchronized int acquire(long now) {
+        int best = 0;
+        double bestScore = -1;
+        for (int i = 0; i < mUrls.length; i++) {
+            if (mDisabled[i] || now < mRetryAfter[i]) {
+                continue;
+            }
+
+            double score = mRates[i] == 0 ? Double.MAX_VALUE : mRates[i] * (1 - mErrorRates[i]);
+            score /= mActive[i] + 1;
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+
+        mActive[best]++;
+        return best;
+    }
+
+    /**
+     * @param failed the request failed, the mirror isn't picked for a while
+     */
+    public synchronized void release(int mirror, boolean failed, long now) {
+        mActive[mirror]--;
+        mErrorRates[mirror] = mErrorRates[mirror] * (1 - ALPHA) + (failed ? ALPHA : 0);
+        if (failed) {
+            mFailures[mirror]++;
+            mRetryAfter[mirror] = now + Math.min(MAX_BACKOFF, mFailures[mirror] * BACKOFF);
+        } else {
+            mFailures[mirror] = 0;
+        }
+    }
+
+    /**
+     * Called when bytes are received from mirror in nanos.
+     */
+    public synchronized void onBytes(int mirror, long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        double rate = bytes * 1e9 / nanos;
+        mRates[mirror] = mRates[mirror] == 0 ? rate : mRates[mirror] * (1 - ALPHA) + rate * ALPHA;
+    }
+
+    /**
+     * The mirror serves another file, don't use it any more.
+     */
+    public synchronized void disable(int mirror) {
+        if (mirror > 0) {
+            mDisabled[mirror] = true;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mUrls.length; i++) {
+            builder.append(String.format(Locale.US, "%s%s: %.0f KB/s, %.0f%% errors%s",
+                    i == 0 ? "" : "; ", mUrls[i], mRates[i] / 1024, mErrorRates[i] * 100,
+                    mDisabled[i] ? ", disabled" : ""));
+        }
+        return builder.toString();
+    }
+}
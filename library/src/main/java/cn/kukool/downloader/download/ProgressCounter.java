@@ -0,0 +1,47 @@
+package cn.kukool.downloader.download;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts downloaded bytes of one download without a lock. Every worker adds to its own cell,
+ * cells are padded to different cache lines, and reading sums all cells up.
+ */
+public class ProgressCounter {
+    /* longs in a 64 bytes cache line */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells;
+    private final int mStripes;
+    private volatile long mBase;
+
+    public ProgressCounter(int stripes) {
+        mStripes = Math.max(1, stripes);
+        mCells = new AtomicLongArray(mStripes * PADDING);
+    }
+
+    /**
+     * @param stripe any non negative number identifying the worker, e.g. its segment id
+     */
+    public void add(int stripe, long count) {
+        mCells.addAndGet((stripe % mStripes) * PADDING, count);
+    }
+
+    public long sum() {
+        long sum = mBase;
+        for (int i = 0; i < mStripes; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Start counting from base again, must not be called while workers are adding.
+     */
+    public void reset(long base) {
+        for (int i = 0; i < mStripes; i++) {
+            mCells.set(i * PADDING, 0);
+        }
+        mBase = base;
+    }
+}
@@ -0,0 +1,165 @@
+package cn.kukool.downloader.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import cn.kukool.downloader.aidl.ProgressFrame;
+
+/**
+ * Builds {@link ProgressFrame}s holding the downloads changed since the last frame the listener got.
+ * <p/>
+ * Only one frame is out at a time. Until it's acked or {@link #mAckTimeout} passes no frame is built,
+ * the changes meanwhile go into the next one.
+ * <p/>
+ * Uids of finished and removed downloads stay in the table until they outnumber the downloads left,
+ * then the next frame starts a new table with only the uids it refers to.
+ */
+public class ProgressFrameBuilder {
+    /* table size below which uids of gone downloads aren't dropped */
+    private static final int MIN_COMPACT_SIZE = 64;
+
+    private final long mAckTimeout;
+
+    /* uid table shared with the listener, it has the first mSentUids */
+    private final List<String> mUids = new ArrayList<>();
+    private final Map<String, Integer> mUidIndices = new HashMap<>();
+    private int mSentUids;
+
+    /* last {downloaded size, file size, status} the listener got of each download */
+    private final Map<String, long[]> mSent = new HashMap<>();
+
+    /* statuses of downloads that left the downloading list */
+    private final Map<String, Integer> mGone = new HashMap<>();
+
+    private long mSequence;
+    private long mPendingSequence = -1;
+    private long mPendingTime;
+
+    public ProgressFrameBuilder(long ackTimeout) {
+        mAckTimeout = ackTimeout;
+    }
+
+    /**
+     * Forget what was sent, called when the listener changes.
+     */
+    public synchronized void reset() {
+        mUids.clear();
+        mUidIndices.clear();
+        mSentUids = 0;
+        mSent.clear();
+        mGone.clear();
+        mPendingSequence = -1;
+    }
+
+    public synchronized void ack(long sequence) {
+        if (sequence >= mPendingSequence) {
+            mPendingSequence = -1;
+        }
+    }
+
+    /**
+     * Called when a download leaves the downloading list because it finished or was removed.
+     */
+    public synchronized void onGone(String uid, int status) {
+        if (mSent.containsKey(uid)) {
+            mGone.put(uid, status);
+        }
+    }
+
+    /**
+     * @param now milliseconds of a monotonic clock
+     * @return the next frame, or null if nothing changed or the last frame isn't acked yet
+     */
+    public synchronized ProgressFrame build(Map<String, FileDownloader> downloaders, long now) {
+        if (mPendingSequence >= 0 && now - mPendingTime < mAckTimeout) {
+            return null;
+        }
+
+        // the table holds the downloads the listener knows and the gone ones
+        if (mUids.size() > MIN_COMPACT_SIZE && mUids.size() > 2 * mSent.size()) {
+            mUids.clear();
+            mUidIndices.clear();
+            mSentUids = 0;
+        }
+
+        int capacity = downloaders.size() + mGone.size();
+        List<String> changed = new ArrayList<>(capacity);
+        List<long[]> values = new ArrayList<>(capacity);
+        for (FileDownloader downloader : downloaders.values()) {
+            ProgressSnapshot snapshot = downloader.getProgressSnapshot();
+            String uid = downloader.getDownloadUid();
+            long[] value = { snapshot.getDownloadedSize(), snapshot.getFileSize(), snapshot.getStatus() };
+            long[] sent = mSent.get(uid);
+            if (sent == null || sent[0] != value[0] || sent[1] != value[1] || sent[2] != value[2]) {
+                changed.add(uid);
+                values.add(value);
+            }
+        }
+
+        int listed = changed.size();
+
+        // downloads the listener knows which are no longer downloading
+        Iterator<Map.Entry<String, long[]>> iterator = mSent.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, long[]> entry = iterator.next();
+            String uid = entry.getKey();
+            if (downloaders.containsKey(uid)) {
+                continue;
+            }
+
+            Integer status = mGone.remove(uid);
+            long[] sent = entry.getValue();
+            if (status != null && status == DownloadStack.STATUS_DOWNLOADED) {
+                values.add(new long[] { sent[1], sent[1], status });
+            } else {
+                values.add(new long[] { sent[0], sent[1], DownloadStack.STATUS_NOT_EXIST });
+            }
+            changed.add(uid);
+            iterator.remove();
+        }
+
+        if (changed.isEmpty()) {
+            return null;
+        }
+
+        int size = changed.size();
+        int[] indices = new int[size];
+        long[] downloadedSizes = new long[size];
+        long[] fileSizes = new long[size];
+        int[] statuses = new int[size];
+        for (int i = 0; i < size; i++) {
+            String uid = changed.get(i);
+            long[] value = values.get(i);
+            indices[i] = indexOf(uid);
+            downloadedSizes[i] = value[0];
+            fileSizes[i] = value[1];
+            statuses[i] = (int) value[2];
+            if (i < listed) {
+                mSent.put(uid, value);
+            }
+        }
+
+        int uidBase = mSentUids;
+        String[] newUids = mUids.subList(uidBase, mUids.size()).toArray(new String[mUids.size() - uidBase]);
+        mSentUids = mUids.size();
+
+        mPendingSequence = ++mSequence;
+        mPendingTime = now;
+        return new ProgressFrame(mSequence, System.currentTimeMillis(), uidBase, newUids,
+                indices, downloadedSizes, fileSizes, statuses);
+    }
+
+    private int indexOf(String uid) {
+        Integer index = mUidIndices.get(uid);
+        if (index == null) {
+            index = mUids.size();
+            mUids.add(uid);
+            mUidIndices.put(uid, index);
+        }
+
+        return index;
+    }
+}
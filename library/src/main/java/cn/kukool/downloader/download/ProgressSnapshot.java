@@ -0,0 +1,44 @@
+package cn.kukool.downloader.download;
+
+/**
+ * Progress of a download read at one moment, the downloaded size never exceeds a known file size.
+ */
+public class ProgressSnapshot {
+    private final long mDownloadedSize;
+    private final long mFileSize;
+    private final int mStatus;
+    private final long mTimestamp;
+
+    public ProgressSnapshot(long downloadedSize, long fileSize, int status) {
+        mFileSize = fileSize;
+        mDownloadedSize = fileSize > 0 ? Math.min(downloadedSize, fileSize) : downloadedSize;
+        mStatus = status;
+        mTimestamp = System.currentTimeMillis();
+    }
+
+    public long getDownloadedSize() {
+        return mDownloadedSize;
+    }
+
+    /**
+     * @return file size, 0 or -1 if it's not known yet
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return downloaded part between 0 and 1, 0 if the file size is unknown
+     */
+    public float getProgress() {
+        return mFileSize > 0 ? mDownloadedSize / (float) mFileSize : 0.0f;
+    }
+}
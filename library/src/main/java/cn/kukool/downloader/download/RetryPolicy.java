@@ -0,0 +1,90 @@
+package cn.kukool.downloader.download;
+
+import android.os.SystemClock;
+
+import com.squareup.okhttp.Response;
+
+import java.util.Date;
+import java.util.Random;
+
+import cn.kukool.downloader.Config;
+
+/**
+ * Delays of the retries of all downloads. A delay is picked at random below an exponential ceiling
+ * so retries failed at the same moment don't come back together, and it's never shorter than the
+ * Retry-After of the server.
+ * <p/>
+ * Retries also take a token from a budget shared by all downloads. The budget refills with time and
+ * with successful requests, once it's spent retries are spread at the refill rate.
+ */
+public class RetryPolicy {
+    private static RetryPolicy instance = null;
+
+    public static synchronized RetryPolicy getInstance() {
+        if (instance == null)
+            instance = new RetryPolicy();
+        return instance;
+    }
+
+    private final Random mRandom = new Random();
+
+    /* retries that may run now, negative when retries are waiting for tokens */
+    private double mTokens = Config.RETRY_BUDGET;
+    private long mLastRefill = SystemClock.elapsedRealtime();
+
+    /**
+     * Reserve a retry.
+     *
+     * @param attempt    1 for the first retry
+     * @param retryAfter milliseconds asked by the server, 0 if none
+     * @return milliseconds to wait before the retry
+     */
+    public synchronized long getDelay(int attempt, long retryAfter) {
+        long ceiling = Config.RETRY_BASE_DELAY << Math.min(Math.max(attempt - 1, 0), 16);
+        long delay = (long) (mRandom.nextDouble() * Math.min(ceiling, Config.RETRY_MAX_DELAY));
+        delay = Math.max(delay, retryAfter);
+
+        refill(SystemClock.elapsedRealtime());
+        mTokens -= 1;
+        if (mTokens < 0) {
+            delay = Math.max(delay, (long) (-mTokens * 1000 / Config.RETRY_BUDGET_REFILL));
+        }
+
+        return delay;
+    }
+
+    /**
+     * Called when a request succeeds, it gives a part of a retry back to the budget.
+     */
+    public synchronized void onSuccess() {
+        mTokens = Math.min(Config.RETRY_BUDGET, mTokens + Config.RETRY_BUDGET_RATIO);
+    }
+
+    private void refill(long now) {
+        if (now > mLastRefill) {
+            mTokens = Math.min(Config.RETRY_BUDGET,
+                    mTokens + (now - mLastRefill) * Config.RETRY_BUDGET_REFILL / 1000.0);
+        }
+        mLastRefill = now;
+    }
+
+    /**
+     * @return milliseconds of the Retry-After header in seconds or as a date, 0 if there is none
+     */
+    public static long getRetryAfter(Response response) {
+        String value = response.header(FileDownloader.Header.RETRY_AFTER);
+        if (value == null) {
+            return 0;
+        }
+
+        long millis;
+        try {
+            millis = Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate(FileDownloader.Header.RETRY_AFTER);
+            millis = date == null ? 0 : date.getTime() - System.currentTimeMillis();
+        }
+
+        return Math.max(0, Math.min(millis, Config.MAX_RETRY_AFTER));
+    }
+}
@@ -0,0 +1,134 @@
+package cn.kukool.downloader.download;
+
+/**
+ * A byte range [start, end] of the target file which is downloaded by one connection.
+ * The end may shrink while downloading when an idle worker steals the tail of it.
+ */
+public class Segment {
+    private final int mId;
+
+    /* next byte to be written */
+    private long mPosition;
+
+    /* bytes before this position are promised to the worker and can't be stolen */
+    private long mCommitted;
+
+    /* last byte of this segment, -1 means until the end of stream */
+    private long mEnd;
+
+    private boolean mFinished;
+    private boolean mActive;
+
+    /* used to calculate the speed of the worker holding this segment */
+    private long mActiveSince;
+    private long mActiveFrom;
+
+    public Segment(int id, long position, long end) {
+        mId = id;
+        mPosition = position;
+        mCommitted = position;
+        mEnd = end;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    public synchronized long getEnd() {
+        return mEnd;
+    }
+
+    public synchronized boolean isRange() {
+        return mEnd >= 0;
+    }
+
+    /**
+     * @return bytes left in this segment or -1 if the end is unknown
+     */
+    public synchronized long getRemaining() {
+        return mEnd < 0 ? -1 : mEnd - mPosition + 1;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished || (mEnd >= 0 && mPosition > mEnd);
+    }
+
+    public synchronized void markFinished() {
+        mFinished = true;
+    }
+
+    synchronized boolean isActive() {
+        return mActive;
+    }
+
+    synchronized void setActive(boolean active) {
+        mActive = active;
+        mActiveSince = System.currentTimeMillis();
+        mActiveFrom = mPosition;
+    }
+
+    /**
+     * @return bytes per millisecond since the segment was picked up by a worker
+     */
+    synchronized float getSpeed() {
+        long elapsed = System.currentTimeMillis() - mActiveSince;
+        return elapsed > 0 ? (mPosition - mActiveFrom) / (float) elapsed : 0;
+    }
+
+    /**
+     * Ask for the permission to write at most count bytes from current position.
+     *
+     * @return bytes the worker is allowed to write, 0 means the segment is done
+     */
+    public synchronized int claim(int count) {
+        if (mEnd >= 0) {
+            count = (int) Math.max(0, Math.min(count, mEnd - mPosition + 1));
+        }
+
+        mCommitted = mPosition + count;
+        return count;
+    }
+
+    public synchronized void advance(int count) {
+        mPosition += count;
+    }
+
+    /**
+     * Start over from the beginning, only used when the server doesn't support range.
+     */
+    public synchronized void rewind() {
+        mPosition = 0;
+        mCommitted = 0;
+    }
+
+    /**
+     * Cut the back half of the uncommitted bytes into a new segment.
+     *
+     * @return the new segment or null if what's left is smaller than twice of minSize
+     */
+    synchronized Segment split(int newId, int minSize) {
+        if (mEnd < 0 || isFinished()) {
+            return null;
+        }
+
+        long from = Math.max(mPosition, mCommitted);
+        long left = mEnd - from + 1;
+        if (left < minSize * 2) {
+            return null;
+        }
+
+        long middle = from + left / 2;
+        Segment segment = new Segment(newId, middle, mEnd);
+        mEnd = middle - 1;
+        return segment;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment#" + mId + "[" + getPosition() + "-" + getEnd() + "]";
+    }
+}
@@ -0,0 +1,136 @@
+package cn.kukool.downloader.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out segments to the workers of one download. When there's no idle segment left,
+ * the worker steals the back half of the segment which is expected to finish last.
+ */
+public class SegmentScheduler {
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final int mMinSegmentSize;
+    private int mMaxSegmentId;
+
+    private ISegmentSchedulerListener mListener;
+
+    public interface ISegmentSchedulerListener {
+        // called when stolen is cut from the tail of victim
+        void onSegmentSplit(Segment victim, Segment stolen);
+    }
+
+    public SegmentScheduler(int minSegmentSize) {
+        mMinSegmentSize = minSegmentSize;
+    }
+
+    public void setSchedulerListener(ISegmentSchedulerListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void add(Segment segment) {
+        mSegments.add(segment);
+        mMaxSegmentId = Math.max(mMaxSegmentId, segment.getId());
+    }
+
+    public synchronized void clear() {
+        mSegments.clear();
+        mMaxSegmentId = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSegments.isEmpty();
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    public synchronized boolean isFinished() {
+        for (Segment segment : mSegments) {
+            if (!segment.isFinished()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return bytes of all segments which are not downloaded yet
+     */
+    public synchronized long getRemaining() {
+        long remaining = 0;
+        for (Segment segment : mSegments) {
+            if (!segment.isFinished()) {
+                remaining += Math.max(0, segment.getRemaining());
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Pick a segment for an idle worker. Segments nobody is working on go first,
+     * otherwise the slowest one is split.
+     *
+     * @return the segment or null if there's nothing left worth downloading in parallel
+     */
+    public synchronized Segment acquire() {
+        for (Segment segment : mSegments) {
+            if (!segment.isActive() && !segment.isFinished()) {
+                segment.setActive(true);
+                return segment;
+            }
+        }
+
+        Segment stolen = steal();
+        if (stolen != null) {
+            stolen.setActive(true);
+        }
+
+        return stolen;
+    }
+
+    public synchronized void release(Segment segment) {
+        segment.setActive(false);
+    }
+
+    private Segment steal() {
+        Segment victim = null;
+        float maxEta = -1;
+
+        for (Segment segment : mSegments) {
+            if (!segment.isActive() || segment.isFinished()) {
+                continue;
+            }
+
+            long remaining = segment.getRemaining();
+            if (remaining < mMinSegmentSize * 2) {
+                continue;
+            }
+
+            // a worker which hasn't read anything yet is treated as the slowest
+            float speed = segment.getSpeed();
+            float eta = speed > 0 ? remaining / speed : Float.MAX_VALUE;
+            if (eta > maxEta || (eta == maxEta && remaining > victim.getRemaining())) {
+                victim = segment;
+                maxEta = eta;
+            }
+        }
+
+        if (victim == null) {
+            return null;
+        }
+
+        Segment stolen = victim.split(mMaxSegmentId + 1, mMinSegmentSize);
+        if (stolen != null) {
+            add(stolen);
+
+            if (mListener != null) {
+                mListener.onSegmentSplit(victim, stolen);
+            }
+        }
+
+        return stolen;
+    }
+}
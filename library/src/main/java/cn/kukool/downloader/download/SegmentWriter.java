@@ -0,0 +1,206 @@
+package cn.kukool.downloader.download;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.BufferedSource;
+
+/**
+ * Copies a response body into its segment of the target file with positional writes.
+ * Bytes are gathered into a chunk first so one write is issued per chunk instead of per read,
+ * and chunks after the first one start at offsets aligned to the chunk size.
+ * The chunk is borrowed from a {@link BufferPool} for each response, a writer without a pool has its own.
+ * <p/>
+ * In mapped mode chunks of range segments are copied into a window of the file mapped with
+ * {@link FileChannel#map} instead of written. The window is bounded, it's moved along the segment,
+ * flushed every flushBytes and unmapped when the response ends.
+ */
+public class SegmentWriter {
+    public static final int MIN_CHUNK_SIZE = 64 << 10;
+    public static final int MAX_CHUNK_SIZE = 512 << 10;
+    private static final int ALIGNMENT = 4 << 10;
+
+    private final FileChannel mChannel;
+    private final int mChunkSize;
+    private final BufferPool mPool;
+    private final StreamingHasher mHasher;
+
+    /* mapped mode, 0 window size writes with the channel */
+    private int mWindowSize;
+    private long mFlushBytes;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mUnflushed;
+
+    public interface IChunkListener {
+        // called after every chunk is written, return false to stop writing
+        boolean onChunkWritten(Segment segment, int count);
+    }
+
+    public SegmentWriter(FileChannel channel, int chunkSize) {
+        this(channel, chunkSize, null);
+    }
+
+    /**
+     * @param hasher hashes every chunk after it's written, or null
+     */
+    public SegmentWriter(FileChannel channel, int chunkSize, StreamingHasher hasher) {
+        this(channel, chunkSize, hasher, null);
+    }
+
+    /**
+     * @param pool buffers shared with other writers, or null
+     */
+    public SegmentWriter(FileChannel channel, int chunkSize, StreamingHasher hasher, BufferPool pool) {
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+        chunkSize -= chunkSize % ALIGNMENT;
+
+        mChannel = channel;
+        mChunkSize = chunkSize;
+        mPool = pool != null ? pool : new BufferPool(chunkSize);
+        mHasher = hasher;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Write range segments through a mapped window of the file. The file must already have its
+     * full length, mapping past its end extends it.
+     *
+     * @param windowSize max bytes mapped at once, 0 to write with the channel
+     * @param flushBytes bytes copied into the window between two flushes to the file
+     */
+    public void setMapped(int windowSize, long flushBytes) {
+        mWindowSize = windowSize <= 0 ? 0 : Math.max(windowSize, mChunkSize);
+        mFlushBytes = flushBytes;
+    }
+
+    /**
+     * Write source into the file from the current position of segment
+     * until the source is exhausted, the segment is done or the listener asks to stop.
+     *
+     * @return true if the source is exhausted
+     */
+    public boolean write(BufferedSource source, Segment segment, IChunkListener listener) throws IOException {
+        ByteBuffer buffer = mPool.acquire(mChunkSize);
+        try {
+            return write(source, segment, listener, buffer);
+        } finally {
+            try {
+                unmap();
+            } finally {
+                mPool.release(buffer);
+            }
+        }
+    }
+
+    private boolean write(BufferedSource source, Segment segment, IChunkListener listener,
+                          ByteBuffer buffer) throws IOException {
+        // okio only reads into arrays, so the chunk is a heap buffer
+        byte[] chunk = buffer.array();
+        while (true) {
+            long position = segment.getPosition();
+            int wanted = segment.claim(mChunkSize - (int) (position % mChunkSize));
+            if (wanted == 0) {
+                return false;
+            }
+
+            int filled = 0;
+            int read = 0;
+            while (filled < wanted && (read = source.read(chunk, filled, wanted - filled)) != -1) {
+                filled += read;
+            }
+
+            if (mWindowSize > 0 && segment.isRange()) {
+                writeMapped(chunk, filled, position, segment.getEnd());
+            } else {
+                buffer.clear();
+                buffer.limit(filled);
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer, position + buffer.position());
+                }
+            }
+            if (mHasher != null) {
+                mHasher.update(position, chunk, 0, filled);
+            }
+            segment.advance(filled);
+
+            if (read == -1) {
+                listener.onChunkWritten(segment, filled);
+                return true;
+            }
+
+            if (!listener.onChunkWritten(segment, filled)) {
+                return false;
+            }
+        }
+    }
+
+    private void writeMapped(byte[] chunk, int count, long position, long end) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            long at = position + offset;
+            if (mWindow == null || at < mWindowStart || at >= mWindowStart + mWindow.capacity()) {
+                unmap();
+                mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, at, Math.min(mWindowSize, end + 1 - at));
+                mWindowStart = at;
+            }
+
+            int n = (int) Math.min(count - offset, mWindowStart + mWindow.capacity() - at);
+            mWindow.position((int) (at - mWindowStart));
+            mWindow.put(chunk, offset, n);
+            offset += n;
+        }
+
+        mUnflushed += count;
+        if (mUnflushed >= mFlushBytes) {
+            mWindow.force();
+            mUnflushed = 0;
+        }
+    }
+
+    private void unmap() {
+        MappedByteBuffer window = mWindow;
+        if (window == null) {
+            return;
+        }
+
+        mWindow = null;
+        if (mUnflushed > 0) {
+            window.force();
+            mUnflushed = 0;
+        }
+        free(window);
+    }
+
+    /**
+     * Unmap the window now instead of when it's collected, so windows of finished segments don't
+     * pile up in the address space.
+     */
+    private static void free(MappedByteBuffer window) {
+        try {
+            // android
+            Class<?> nioUtils = Class.forName("java.nio.NioUtils");
+            nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class).invoke(null, window);
+            return;
+        } catch (Exception ignore) {
+        }
+
+        try {
+            // the jvm of the benchmarks
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), window);
+        } catch (Exception ignore) {
+            // unmapped when collected
+        }
+    }
+}
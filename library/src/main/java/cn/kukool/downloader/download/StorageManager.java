@@ -0,0 +1,180 @@
+package cn.kukool.downloader.download;
+
+import android.os.Build;
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import cn.kukool.downloader.Config;
+import cn.kukool.downloader.util.Log;
+
+/**
+ * Space of the files of the running downloads. A download reserves the bytes its file still needs
+ * on the disk when it's about to start, it stays queued while they don't fit in the free space left
+ * by the other reservations. A reservation shrinks on every progress tick by the bytes written and
+ * drops to 0 once its file is allocated, so written bytes aren't counted twice and a check doesn't
+ * look at the other files.
+ * <p/>
+ * Files are allocated at once with fallocate where the system and the file system support it,
+ * otherwise they are left sparse and grow as segments are written, they are never zero-filled.
+ */
+public class StorageManager {
+    private static final String TAG = "StorageManager";
+
+    private static StorageManager instance = null;
+
+    public static synchronized StorageManager getInstance() {
+        if (instance == null)
+            instance = new StorageManager();
+        return instance;
+    }
+
+    /**
+     * Thrown when the disk has no space left for a file.
+     */
+    public static class NoSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NoSpaceException(String message) {
+            super(message);
+        }
+    }
+
+    /* uid -> bytes its file still needs, and their sum */
+    private final Map<String, Long> mReserved = new HashMap<>();
+    private long mReservedBytes;
+
+    /**
+     * Reserve the space the file of the download still needs, called before it starts. A download
+     * whose size isn't known yet is reserved later, once it has it.
+     *
+     * @return false if the file doesn't fit on the disk
+     */
+    public synchronized boolean reserve(FileDownloader loader) {
+        String uid = loader.getDownloadUid();
+        if (mReserved.containsKey(uid) || loader.getSource() != null || loader.getFileSize() <= 0) {
+            // a follower shares the file of its source
+            return true;
+        }
+
+        long needed = getNeeded(loader);
+        long available = getAvailableSize(loader.getFileDir());
+        if (available >= 0 && needed + mReservedBytes + Config.MIN_FREE_SPACE > available) {
+            Log.debug(TAG, uid + " needs " + needed + " bytes, " + available + " are free, "
+                    + mReservedBytes + " are reserved");
+            return false;
+        }
+
+        mReserved.put(uid, needed);
+        mReservedBytes += needed;
+        return true;
+    }
+
+    public synchronized void release(String uid) {
+        Long reserved = mReserved.remove(uid);
+        if (reserved != null) {
+            mReservedBytes -= reserved;
+        }
+    }
+
+    /**
+     * Called on every progress tick with the bytes of the file of uid written since the last one.
+     */
+    public synchronized void onWritten(String uid, long count) {
+        Long reserved = mReserved.get(uid);
+        if (reserved != null && reserved > 0 && count > 0) {
+            shrink(uid, reserved, Math.max(0, reserved - count));
+        }
+    }
+
+    /**
+     * Called when the whole file of uid is allocated.
+     */
+    public synchronized void onAllocated(String uid) {
+        Long reserved = mReserved.get(uid);
+        if (reserved != null && reserved > 0) {
+            shrink(uid, reserved, 0);
+        }
+    }
+
+    private void shrink(String uid, long reserved, long left) {
+        mReserved.put(uid, left);
+        mReservedBytes -= reserved - left;
+    }
+
+    /**
+     * @return bytes the file of the download still needs on the disk
+     */
+    private static long getNeeded(FileDownloader loader) {
+        long fileSize = loader.getFileSize();
+        if (fileSize <= 0) {
+            return 0;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && loader.getFileName() != null) {
+            File file = new File(loader.getFileDir(), loader.getFileName());
+            try {
+                // blocks of 512 bytes whatever the block size of the file system
+                return Math.max(0, fileSize - Os.stat(file.getPath()).st_blocks * 512);
+            } catch (ErrnoException e) {
+                // no file yet
+                return fileSize;
+            }
+        }
+
+        return Math.max(0, loader.getRemainingSize());
+    }
+
+    /**
+     * @return free bytes of the file system of the directory, -1 if unknown
+     */
+    public static long getAvailableSize(String dir) {
+        File file = dir == null ? null : new File(dir);
+        while (file != null && !file.exists()) {
+            file = file.getParentFile();
+        }
+        if (file == null) {
+            return -1;
+        }
+
+        try {
+            StatFs stat = new StatFs(file.getPath());
+            return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        } catch (IllegalArgumentException e) {
+            Log.error(TAG, "cannot stat " + file, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Allocate size bytes for the file without writing them.
+     *
+     * @return false if the file is left sparse because fallocate isn't supported
+     * @throws NoSpaceException if the disk has no space for the file
+     */
+    public static boolean preallocate(RandomAccessFile file, long size) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        try {
+            Os.posix_fallocate(file.getFD(), 0, size);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new NoSpaceException("no space for " + size + " bytes");
+            }
+
+            // FAT sdcards and other file systems can't allocate
+            Log.debug(TAG, "cannot allocate " + size + " bytes: " + e.getMessage());
+            return false;
+        }
+    }
+}
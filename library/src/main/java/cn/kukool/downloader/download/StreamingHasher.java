@@ -0,0 +1,205 @@
+package cn.kukool.downloader.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hashes a file while its segments are written in any order.
+ * <p/>
+ * Bytes written at the frontier, the end of what's hashed so far, are hashed from the chunk in memory.
+ * Bytes written ahead of it are kept as ranges and read back from the file as soon as the frontier
+ * reaches them, by the thread that moved it. Only those bytes are read twice.
+ */
+public class StreamingHasher {
+    private static final int READ_SIZE = 64 << 10;
+
+    private final MessageDigest mDigest;
+    private final File mFile;
+
+    /* written ranges ahead of the frontier, start -> end exclusive, never overlapping */
+    private final TreeMap<Long, Long> mWritten = new TreeMap<>();
+    private long mFrontier;
+
+    /* a thread is reading ranges back, only it uses mReader and mReadBuffer */
+    private boolean mBusy;
+    private RandomAccessFile mReader;
+    private byte[] mReadBuffer;
+
+    private long mReadBack;
+    private IOException mError;
+
+    public StreamingHasher(String algorithm, File file) throws NoSuchAlgorithmException {
+        mDigest = MessageDigest.getInstance(algorithm);
+        mFile = file;
+    }
+
+    /**
+     * Bytes already in the file, like the ones written before the download is resumed.
+     */
+    public synchronized void markWritten(long start, long end) {
+        addRange(start, end);
+    }
+
+    /**
+     * Called after count bytes of chunk are written at position of the file.
+     */
+    public void update(long position, byte[] chunk, int offset, int count) {
+        synchronized (this) {
+            if (mError != null) {
+                // the rest is read when finished
+                return;
+            }
+
+            if (!mBusy && position == mFrontier) {
+                mDigest.update(chunk, offset, count);
+                mFrontier += count;
+            } else {
+                addRange(position, position + count);
+            }
+
+            if (mBusy || !hasRangeAtFrontier()) {
+                return;
+            }
+            mBusy = true;
+        }
+
+        readBack();
+    }
+
+    /**
+     * Hash what's left up to fileSize once all of it is written.
+     *
+     * @return the digest
+     */
+    public byte[] finish(long fileSize) throws IOException {
+        synchronized (this) {
+            while (mBusy) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while hashing " + mFile);
+                }
+            }
+
+            mBusy = true;
+            mError = null;
+            mWritten.clear();
+            if (mFrontier < fileSize) {
+                mWritten.put(mFrontier, fileSize);
+            }
+        }
+
+        readBack();
+
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+
+            if (mFrontier != fileSize) {
+                throw new IOException("hashed " + mFrontier + " of " + fileSize + " bytes of " + mFile);
+            }
+            return mDigest.digest();
+        }
+    }
+
+    /**
+     * @return bytes read back from the file so far
+     */
+    public synchronized long getReadBack() {
+        return mReadBack;
+    }
+
+    public synchronized long getFrontier() {
+        return mFrontier;
+    }
+
+    private void readBack() {
+        while (true) {
+            long start;
+            int length;
+            synchronized (this) {
+                if (mError != null || !hasRangeAtFrontier()) {
+                    // ranges come in bursts when a segment is caught up, don't hold the file in between
+                    closeReader();
+                    mBusy = false;
+                    notifyAll();
+                    return;
+                }
+
+                start = mFrontier;
+                length = (int) Math.min(READ_SIZE, mWritten.firstEntry().getValue() - start);
+            }
+
+            try {
+                if (mReader == null) {
+                    mReader = new RandomAccessFile(mFile, "r");
+                    mReadBuffer = new byte[READ_SIZE];
+                }
+                mReader.seek(start);
+                mReader.readFully(mReadBuffer, 0, length);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mError = e;
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                mDigest.update(mReadBuffer, 0, length);
+                mFrontier += length;
+                mReadBack += length;
+
+                Map.Entry<Long, Long> first = mWritten.pollFirstEntry();
+                if (first.getValue() > mFrontier) {
+                    mWritten.put(mFrontier, first.getValue());
+                }
+            }
+        }
+    }
+
+    private boolean hasRangeAtFrontier() {
+        return !mWritten.isEmpty() && mWritten.firstKey() == mFrontier;
+    }
+
+    private void addRange(long start, long end) {
+        start = Math.max(start, mFrontier);
+        if (start >= end) {
+            return;
+        }
+
+        // merge with the ranges it overlaps or touches
+        Map.Entry<Long, Long> before = mWritten.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            mWritten.remove(before.getKey());
+        }
+
+        Map.Entry<Long, Long> after = mWritten.ceilingEntry(start);
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            mWritten.remove(after.getKey());
+            after = mWritten.ceilingEntry(start);
+        }
+
+        mWritten.put(start, end);
+    }
+
+    private void closeReader() {
+        if (mReader != null) {
+            try {
+                mReader.close();
+            } catch (IOException ignore) {
+            }
+            mReader = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package cn.kukool.downloader.download;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Downloads waiting to start, ordered by priority (higher first) and then by the order they were queued.
+ * With shortest remaining first, downloads with less bytes left go before others of the same priority,
+ * downloads of unknown size go last.
+ * <p/>
+ * Offer, poll and remove are O(log n).
+ */
+public class TaskQueue {
+    private static class Entry {
+        final String mUid;
+        final long mSequence;
+        int mPriority;
+        long mRemaining;
+
+        Entry(String uid, long sequence) {
+            mUid = uid;
+            mSequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> FIFO = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            }
+
+            return compareLong(lhs.mSequence, rhs.mSequence);
+        }
+    };
+
+    private static final Comparator<Entry> SHORTEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            }
+
+            if (lhs.mRemaining != rhs.mRemaining) {
+                return compareLong(lhs.mRemaining, rhs.mRemaining);
+            }
+
+            return compareLong(lhs.mSequence, rhs.mSequence);
+        }
+    };
+
+    private static int compareLong(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    private TreeSet<Entry> mQueue;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mNextSequence;
+
+    public TaskQueue(boolean shortestFirst) {
+        mQueue = new TreeSet<>(shortestFirst ? SHORTEST_FIRST : FIFO);
+    }
+
+    /**
+     * Queue a download, or move it if it's already queued. A moved download keeps its place among
+     * downloads of the same priority.
+     *
+     * @param remaining bytes left to download, or -1 if unknown
+     */
+    public synchronized void offer(String uid, int priority, long remaining) {
+        Entry entry = mEntries.get(uid);
+        if (entry == null) {
+            entry = new Entry(uid, mNextSequence++);
+            mEntries.put(uid, entry);
+        } else {
+            mQueue.remove(entry);
+        }
+
+        entry.mPriority = priority;
+        entry.mRemaining = remaining < 0 ? Long.MAX_VALUE : remaining;
+        mQueue.add(entry);
+    }
+
+    /**
+     * Change the priority of a queued download.
+     *
+     * @return false if it's not queued
+     */
+    public synchronized boolean reprioritize(String uid, int priority) {
+        Entry entry = mEntries.get(uid);
+        if (entry == null) {
+            return false;
+        }
+
+        mQueue.remove(entry);
+        entry.mPriority = priority;
+        mQueue.add(entry);
+        return true;
+    }
+
+    /**
+     * @return uid of the download to start next, or null if the queue is empty
+     */
+    public synchronized String poll() {
+        Entry entry = mQueue.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+
+        mEntries.remove(entry.mUid);
+        return entry.mUid;
+    }
+
+    /**
+     * @param skipped uids of queued downloads to pass over, they keep their place
+     * @return uid of the first download not skipped, left in the queue, or null if there's none
+     */
+    public synchronized String peek(Set<String> skipped) {
+        for (Entry entry : mQueue) {
+            if (!skipped.contains(entry.mUid)) {
+                return entry.mUid;
+            }
+        }
+
+        return null;
+    }
+
+    public synchronized boolean remove(String uid) {
+        Entry entry = mEntries.remove(uid);
+        return entry != null && mQueue.remove(entry);
+    }
+
+    public synchronized boolean contains(String uid) {
+        return mEntries.containsKey(uid);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mQueue.clear();
+        mEntries.clear();
+    }
+
+    public synchronized void setShortestFirst(boolean shortestFirst) {
+        TreeSet<Entry> queue = new TreeSet<>(shortestFirst ? SHORTEST_FIRST : FIFO);
+        queue.addAll(mQueue);
+        mQueue = queue;
+    }
+}
@@ -6,17 +6,25 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 
+import java.util.List;
+
+import cn.kukool.downloader.aidl.DownloadItem;
+import cn.kukool.downloader.aidl.DownloadRequest;
 import cn.kukool.downloader.aidl.IDownloadListener;
 import cn.kukool.downloader.aidl.IDownloader;
+import cn.kukool.downloader.aidl.IProgressListener;
+import cn.kukool.downloader.aidl.ProgressFrame;
 import cn.kukool.downloader.download.DownloadStack;
 import cn.kukool.downloader.util.NetworkUtil;
 
 
-public class DownloadService extends Service implements DownloadStack.IDownloadListener {
+public class DownloadService extends Service implements DownloadStack.IDownloadListener,
+        DownloadStack.IProgressFrameListener {
     private static final String TAG = "DownloadService";
 
     private DownloadStack mDownloadStack;
     private IDownloadListener mDownloadListener;
+    private volatile IProgressListener mProgressListener;
 
     @Override
     public void onCreate() {
@@ -49,7 +57,7 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
     }
 
     @Override
-    public void onDownloadTaskStart(String uid, String filepath, int filesize) {
+    public void onDownloadTaskStart(String uid, String filepath, long filesize) {
         if (mDownloadListener != null) {
             try {
                 mDownloadListener.onDownloadTaskStart(uid, filepath, filesize);
@@ -60,7 +68,7 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
     }
 
     @Override
-    public void onDownloadTaskBaseInfo(String uid, String filepath, int filesize) {
+    public void onDownloadTaskBaseInfo(String uid, String filepath, long filesize) {
         if (mDownloadListener != null) {
             try {
                 mDownloadListener.onDownloadTaskBaseInfo(uid, filepath, filesize);
@@ -93,10 +101,10 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
     }
 
     @Override
-    public void onDownloadTaskFinish(String uid, String filePath) {
+    public void onDownloadTaskFinish(String uid, String filePath, String digest) {
         if (mDownloadListener != null) {
             try {
-                mDownloadListener.onDownloadTaskFinish(uid, filePath);
+                mDownloadListener.onDownloadTaskFinish(uid, filePath, digest);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
@@ -125,12 +133,54 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
         }
     }
 
+    @Override
+    public void onProgressFrame(ProgressFrame frame) {
+        IProgressListener listener = mProgressListener;
+        if (listener != null) {
+            try {
+                listener.onProgressFrame(frame);
+            } catch (RemoteException e) {
+                // the client is gone
+                e.printStackTrace();
+                mProgressListener = null;
+                mDownloadStack.setProgressFrameListener(null, 0);
+            }
+        }
+    }
+
     private class DownloadBinder extends IDownloader.Stub {
         @Override
         public boolean startDownload(String uid, String url, String postData, String path) throws RemoteException {
             return mDownloadStack.startDownload(uid, url, postData, path);
         }
 
+        @Override
+        public boolean startDownloadWithPriority(String uid, String url, String postData, String path,
+                                                 int priority) throws RemoteException {
+            return mDownloadStack.startDownload(uid, url, postData, path, priority);
+        }
+
+        @Override
+        public boolean startDownloadWithDigest(String uid, String url, String postData, String path, int priority,
+                                               String digestAlgorithm, String expectedDigest) throws RemoteException {
+            return mDownloadStack.startDownload(uid, url, postData, path, priority, digestAlgorithm, expectedDigest);
+        }
+
+        @Override
+        public int startDownloads(List<DownloadRequest> requests) throws RemoteException {
+            return mDownloadStack.startDownloads(requests);
+        }
+
+        @Override
+        public boolean setDownloadPriority(String uid, int priority) throws RemoteException {
+            return mDownloadStack.setDownloadPriority(uid, priority);
+        }
+
+        @Override
+        public void setShortestRemainingFirst(boolean enabled) throws RemoteException {
+            mDownloadStack.setShortestRemainingFirst(enabled);
+        }
+
         @Override
         public boolean pauseDownload(String uid) throws RemoteException {
             return mDownloadStack.pauseDownload(uid);
@@ -146,6 +196,36 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
             return mDownloadStack.removeDownload(uid, withFile);
         }
 
+        @Override
+        public int pauseDownloads(List<String> uids) throws RemoteException {
+            return mDownloadStack.pauseDownloads(uids);
+        }
+
+        @Override
+        public int resumeDownloads(List<String> uids) throws RemoteException {
+            return mDownloadStack.resumeDownloads(uids);
+        }
+
+        @Override
+        public int removeDownloads(List<String> uids, boolean withFile) throws RemoteException {
+            return mDownloadStack.removeDownloads(uids, withFile);
+        }
+
+        @Override
+        public int pauseGroup(String group) throws RemoteException {
+            return mDownloadStack.pauseGroup(group);
+        }
+
+        @Override
+        public int resumeGroup(String group) throws RemoteException {
+            return mDownloadStack.resumeGroup(group);
+        }
+
+        @Override
+        public int removeGroup(String group, boolean withFile) throws RemoteException {
+            return mDownloadStack.removeGroup(group, withFile);
+        }
+
         @Override
         public int getDownloadItemStatus(String uid) throws RemoteException {
             return mDownloadStack.getDownloadItemStatus(uid);
@@ -161,10 +241,61 @@ public class DownloadService extends Service implements DownloadStack.IDownloadL
             return mDownloadStack.getDownloadList();
         }
 
+        @Override
+        public List<DownloadItem> getDownloads(String group, int offset, int limit) throws RemoteException {
+            return mDownloadStack.getDownloads(group, offset, limit);
+        }
+
+        @Override
+        public int getDownloadCount(String group) throws RemoteException {
+            return mDownloadStack.getDownloadCount(group);
+        }
+
+        @Override
+        public Bundle[] getDownloadedList(int offset, int limit) throws RemoteException {
+            return mDownloadStack.getDownloadedList(offset, limit);
+        }
+
+        @Override
+        public long getDownloadedCount() throws RemoteException {
+            return mDownloadStack.getDownloadedCount();
+        }
+
         @Override
         public void setDownloadListener(IDownloadListener listener) throws RemoteException {
             mDownloadListener = listener;
         }
+
+        @Override
+        public void setProgressListener(IProgressListener listener, int intervalMs) throws RemoteException {
+            mProgressListener = listener;
+            mDownloadStack.setProgressFrameListener(listener != null ? DownloadService.this : null, intervalMs);
+        }
+
+        @Override
+        public void ackProgressFrame(long sequence) throws RemoteException {
+            mDownloadStack.ackProgressFrame(sequence);
+        }
+
+        @Override
+        public void setBandwidthLimit(long bytesPerSecond) throws RemoteException {
+            mDownloadStack.setBandwidthLimit(bytesPerSecond);
+        }
+
+        @Override
+        public boolean setDownloadBandwidthLimit(String uid, long bytesPerSecond) throws RemoteException {
+            return mDownloadStack.setDownloadBandwidthLimit(uid, bytesPerSecond);
+        }
+
+        @Override
+        public boolean setDownloadWeight(String uid, int weight) throws RemoteException {
+            return mDownloadStack.setDownloadWeight(uid, weight);
+        }
+
+        @Override
+        public boolean setDownloadMappedWrite(String uid, boolean mapped) throws RemoteException {
+            return mDownloadStack.setDownloadMappedWrite(uid, mapped);
+        }
     }
 
     private DownloadBinder mBinder = null;
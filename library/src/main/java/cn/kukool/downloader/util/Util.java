@@ -1,10 +1,20 @@
 package cn.kukool.downloader.util;
 
+import android.os.Build;
 import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 public class Util {
+    private static final String TAG = "Util";
+
     public static boolean isSdcardOK() {
         try {
             return Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED);
@@ -75,4 +85,62 @@ public class Util {
         return true;
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Hard link to to from, or copy from if links aren't supported.
+     *
+     * @return false if neither works
+     */
+    public static boolean linkOrCopy(File from, File to) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(from.getPath(), to.getPath());
+                return true;
+            } catch (ErrnoException e) {
+                // FAT sdcards and other file systems can't link
+                Log.debug(TAG, "cannot link " + to + ": " + e.getMessage());
+            }
+        }
+
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.error(TAG, "cannot copy " + from + " to " + to, e);
+            to.delete();
+            return false;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
 }